@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ws.doerr.projects.emailtemplates.Dependency;
+import ws.doerr.projects.emailtemplates.ProcessorContext;
+
+/**
+ * Content hash manifest for incremental batch processing
+ *
+ * Records the hash of every source file along with the hashes of all of its
+ * dependencies as of the last successful run. A source only needs to be
+ * processed again if any file in that set has changed or its output is missing.
+ *
+ * @author greg
+ */
+public class BatchManifest {
+    private static final Logger LOG = Logger.getLogger(BatchManifest.class.getName());
+
+    public static final String FILE_NAME = ".cssinliner-manifest.json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final Path file;
+    private Manifest manifest = new Manifest();
+
+    // Hashes computed during this run, shared stylesheets and templates only get read once
+    private final Map<Path, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Json Utility Class - persisted manifest
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    static class Manifest {
+        int version = 1;
+        Map<String, Entry> entries = new TreeMap<>();
+    }
+
+    /**
+     * Json Utility Class - state of a single source file
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    static class Entry {
+        String destination;
+        Map<String, String> hashes = new TreeMap<>();
+    }
+
+    /**
+     * Load the manifest from a folder. A missing or unreadable manifest
+     * results in an empty one so every file is processed.
+     * @param folder folder holding the manifest
+     * @return
+     */
+    public static BatchManifest load(Path folder) {
+        BatchManifest rc = new BatchManifest(folder.toAbsolutePath().resolve(FILE_NAME));
+
+        if(rc.file.toFile().exists()) {
+            try {
+                Manifest manifest = MAPPER.readValue(rc.file.toFile(), Manifest.class);
+                if(manifest.version == rc.manifest.version)
+                    rc.manifest = manifest;
+            } catch(IOException ex) {
+                LOG.log(Level.WARNING, "Ignoring unreadable manifest " + rc.file, ex);
+            }
+        }
+
+        return rc;
+    }
+
+    private BatchManifest(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Check if a source, and everything it depended on last time it was
+     * processed, is unchanged
+     * @param source source file
+     * @param destination output file
+     * @return true if the existing output is still current
+     */
+    public boolean isCurrent(Path source, Path destination) {
+        Entry entry = manifest.entries.get(key(source));
+        if(entry == null || !key(destination).equals(entry.destination) || !destination.toFile().exists())
+            return false;
+
+        for(Map.Entry<String, String> hash : entry.hashes.entrySet()) {
+            String current = hash(Paths.get(hash.getKey()));
+            if(current == null || !current.equals(hash.getValue()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record the outcome of processing a source file
+     * @param result
+     */
+    public void update(BatchProcessor.Result result) {
+        String source = key(result.getSource());
+
+        if(!result.isSuccess()) {
+            manifest.entries.remove(source);
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.destination = key(result.getDestination());
+        entry.hashes.put(source, hash(result.getSource()));
+
+        ProcessorContext context = result.getContext();
+        if(context != null) {
+            for(Dependency dependency : context.getDependencies())
+                entry.hashes.put(key(dependency.getPath()), hash(dependency.getPath()));
+        }
+
+        // A dependency that can't be read can't be verified next time
+        if(entry.hashes.containsValue(null))
+            manifest.entries.remove(source);
+        else
+            manifest.entries.put(source, entry);
+    }
+
+    /**
+     * Write the manifest, dropping sources that no longer exist
+     */
+    public void save() {
+        manifest.entries.keySet().removeIf(source -> !Paths.get(source).toFile().exists());
+
+        try {
+            file.getParent().toFile().mkdirs();
+            MAPPER.writeValue(file.toFile(), manifest);
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Exception writing manifest " + file, ex);
+        }
+    }
+
+    private String hash(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        String rc = hashes.get(p);
+        if(rc == null) {
+            try {
+                rc = Files.hash(p.toFile(), Hashing.sha256()).toString();
+                hashes.put(p, rc);
+            } catch(IOException ex) {
+                return null;
+            }
+        }
+        return rc;
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
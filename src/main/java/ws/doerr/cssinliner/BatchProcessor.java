@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import ws.doerr.projects.emailtemplates.ProcessorContext;
+import ws.doerr.projects.emailtemplates.TemplateProcessor;
+
+/**
+ * Batch mode inliner
+ *
+ * Fans the source files out over a fixed pool of workers. Each worker thread
+ * gets its own TemplateProcessor so no processor state is shared between files.
+ *
+ * @author greg
+ */
+public class BatchProcessor {
+    private final int threads;
+
+    private final ThreadLocal<TemplateProcessor> processor = ThreadLocal.withInitial(TemplateProcessor::new);
+
+    /**
+     * @param threads number of worker threads, anything less than 1 uses the
+     * number of available processors
+     */
+    public BatchProcessor(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Inline each source file to its destination
+     * @param jobs source path to destination path
+     * @return the result for each source in the iteration order of jobs
+     * @throws InterruptedException
+     */
+    public List<Result> process(Map<Path, Path> jobs) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(jobs.size(), 1)),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("inliner-%d")
+                        .setDaemon(true)
+                        .build());
+
+        try {
+            List<Callable<Result>> tasks = new ArrayList<>();
+            jobs.forEach((src, dest) -> tasks.add(() -> process(src, dest)));
+
+            List<Result> results = new ArrayList<>();
+            for(Future<Result> future : executor.invokeAll(tasks)) {
+                try {
+                    results.add(future.get());
+                } catch(ExecutionException ex) {
+                    // process() traps everything, this shouldn't happen
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Result process(Path src, Path dest) {
+        long start = System.nanoTime();
+        try {
+            ProcessorContext context = processor.get().process(src, dest);
+            return new Result(src, dest, context, null, System.nanoTime() - start);
+        } catch(Exception ex) {
+            return new Result(src, dest, null, ex, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Outcome of processing a single source file
+     */
+    public static class Result {
+        private final Path source;
+        private final Path destination;
+        private final ProcessorContext context;
+        private final Exception error;
+        private final long elapsed;
+
+        Result(Path source, Path destination, ProcessorContext context, Exception error, long elapsed) {
+            this.source = source;
+            this.destination = destination;
+            this.context = context;
+            this.error = error;
+            this.elapsed = elapsed;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getDestination() {
+            return destination;
+        }
+
+        public ProcessorContext getContext() {
+            return context;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return processing time in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+    }
+}
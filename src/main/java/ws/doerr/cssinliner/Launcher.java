@@ -25,15 +25,25 @@ package ws.doerr.cssinliner;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ws.doerr.configuration.Configuration;
+import ws.doerr.cssinliner.email.BulkPublisher;
 import ws.doerr.cssinliner.server.InlinerApp;
-import ws.doerr.projects.emailtemplates.TemplateProcessor;
 
 /**
  *
@@ -80,7 +90,12 @@ public class Launcher {
         System.out.println("\tinliner -i input-path\t\t\tprocesses each html file from input-path with the result being");
         System.out.println("\t\t\t\t\t\twritten to the same folder with the .out extension");
         System.out.println("\tinliner -i input-path -o output-path\tprocesses each html file from input-path with the result being");
-        System.out.println("\t\t\t\t\t\twritten to output-path\n");
+        System.out.println("\t\t\t\t\t\twritten to output-path");
+        System.out.println("\tinliner -i input-path -t threads\t\tprocesses the files on the given number of threads (defaults");
+        System.out.println("\t\t\t\t\t\tto the number of processors)");
+        System.out.println("\tinliner -i input-path -f\t\t\tprocesses every file, even those unchanged since the last run");
+        System.out.println("\tinliner -i input-path -ep prefix\t\tprocesses every file and publishes the results to the ESP");
+        System.out.println("\t\t\t\t\t\twith the template name prefix\n");
 
         System.out.println("The Interactive version of the program processes files in real-time and provides a processed and viewable");
         System.out.println("  version of the template through a web-browser\n");
@@ -103,8 +118,6 @@ public class Launcher {
     }
 
     private static void runInline(MainConfiguration config) {
-            TemplateProcessor processor = new TemplateProcessor();
-
             Set<String> sources = new HashSet<>(Configuration.getUnhandled());
 
             if(config.inputPath != null && Configuration.getUnhandled().isEmpty()) {
@@ -120,19 +133,114 @@ public class Launcher {
                     sources.add(file.getPath());
             }
 
+            Map<Path, Path> jobs = new TreeMap<>();
             for(String source : sources) {
-                try {
-                    Path src = Paths.get(source);
-                    Path dest = appendFileName(src, ".out");
+                Path src = Paths.get(source);
+                Path dest = appendFileName(src, ".out");
+
+                if(!config.outputPath.isEmpty())
+                    dest = Paths.get(config.outputPath, src.getFileName().toString());
+
+                jobs.put(src, dest);
+            }
+
+            // Skip anything that hasn't changed since the last run. Publishing
+            // needs the meta data from processing so everything is processed.
+            Path manifestFolder = !config.outputPath.isEmpty() ? Paths.get(config.outputPath)
+                    : !config.inputPath.isEmpty() ? Paths.get(config.inputPath)
+                    : Paths.get("");
+            BatchManifest manifest = BatchManifest.load(manifestFolder);
+
+            int skipped = 0;
+            if(!config.force && config.publishPrefix.isEmpty()) {
+                Iterator<Map.Entry<Path, Path>> it = jobs.entrySet().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<Path, Path> job = it.next();
+                    if(manifest.isCurrent(job.getKey(), job.getValue())) {
+                        it.remove();
+                        skipped++;
+                    }
+                }
+            }
+
+            try {
+                BatchProcessor processor = new BatchProcessor(config.threads);
+                long start = System.nanoTime();
+                List<BatchProcessor.Result> results = processor.process(jobs);
+
+                results.forEach(manifest::update);
+                manifest.save();
+
+                printSummary(results, skipped, processor.getThreads(), System.nanoTime() - start);
 
-                    if(!config.outputPath.isEmpty())
-                        dest = Paths.get(config.outputPath, src.getFileName().toString());
+                if(!config.publishPrefix.isEmpty())
+                    publish(results, config.publishPrefix);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+    }
 
-                    processor.process(src, dest);
-                } catch(Exception ex) {
-                    ex.printStackTrace();
+    private static void publish(List<BatchProcessor.Result> results, String prefix) throws InterruptedException {
+        List<BulkPublisher.Template> templates = new ArrayList<>();
+        for(BatchProcessor.Result result : results) {
+            String name = result.getSource().getFileName().toString();
+
+            // Templates without a body are reported as failed
+            String body = null;
+            if(result.isSuccess()) {
+                try {
+                    body = new String(Files.readAllBytes(result.getDestination()), StandardCharsets.UTF_8);
+                } catch(IOException ex) {
+                    LOG.log(Level.WARNING, "Exception reading " + result.getDestination(), ex);
                 }
             }
+
+            templates.add(new BulkPublisher.Template(name, body != null ? InlinerApp.getTitle(body) : null,
+                    body, result.getContext() != null ? result.getContext().getMeta() : null));
+        }
+
+        System.out.println(String.format("\nPublishing %d template(s) with prefix %s", templates.size(), prefix));
+
+        List<BulkPublisher.Outcome> outcomes;
+        try {
+            outcomes = new BulkPublisher().publish(templates, prefix).get();
+        } catch(ExecutionException ex) {
+            LOG.log(Level.SEVERE, "Exception publishing templates", ex.getCause());
+            return;
+        }
+
+        int failed = 0;
+        for(BulkPublisher.Outcome outcome : outcomes) {
+            if(outcome.isSuccess()) {
+                System.out.println(String.format("  %-9s %s", outcome.getStatus(), outcome.getName()));
+            } else {
+                failed++;
+                System.out.println(String.format("  FAIL      %s: %s", outcome.getName(), outcome.getError()));
+            }
+        }
+
+        System.out.println(String.format("\n%d published, %d failed", outcomes.size() - failed, failed));
+    }
+
+    private static void printSummary(List<BatchProcessor.Result> results, int skipped, int threads, long elapsed) {
+        int failed = 0;
+        for(BatchProcessor.Result result : results) {
+            if(result.isSuccess()) {
+                System.out.println(String.format("  OK    %s (%d ms)",
+                        result.getSource(), TimeUnit.NANOSECONDS.toMillis(result.getElapsed())));
+            } else {
+                failed++;
+                System.out.println(String.format("  FAIL  %s: %s",
+                        result.getSource(), result.getError()));
+
+                // The failure is reported above, the stack trace is only for debugging
+                LOG.log(Level.FINE, "Exception processing " + result.getSource(), result.getError());
+            }
+        }
+
+        System.out.println(String.format("\n%d processed, %d succeeded, %d failed, %d unchanged in %d ms using %d thread(s)",
+                results.size(), results.size() - failed, failed, skipped,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), threads));
     }
 
     private static Path appendFileName(Path src, String add) {
@@ -36,7 +36,10 @@ import ws.doerr.configuration.ConfigHelp;
     "Common Configuration Values\n",
     "\t-i, --input\t\t\t\tSpecify the input directory. Application looks for .html files\n\t\t\t\t\t\tin this folder\n",
     "\t-o, --output\t\t\t\tSpecify the output directory. Completed files are written to\n\t\t\t\t\t\tthis folder with the same name as the source\n",
-    "\t-d, --data\t\t\t\tSpecify the data directory for interactive mode. Grabs files\n\t\t\t\t\t\tmatching [name.html].json from this folder for handlebars merge.\n"
+    "\t-t, --threads\t\t\t\tNumber of threads used to process files in batch mode. Defaults\n\t\t\t\t\t\tto the number of available processors\n",
+    "\t-f, --force\t\t\t\tProcess every file in batch mode, even if the file and its\n\t\t\t\t\t\tdependencies are unchanged since the last run\n",
+    "\t-d, --data\t\t\t\tSpecify the data directory for interactive mode. Grabs files\n\t\t\t\t\t\tmatching [name.html].json from this folder for handlebars merge.\n",
+    "\t-ep, --publish\t\t\t\tPublish the processed templates to the ESP in batch mode using\n\t\t\t\t\t\tthe given template name prefix\n"
 }, priority = 1)
 public class MainConfiguration {
 
@@ -52,6 +55,15 @@ public class MainConfiguration {
     @ConfigElement(shortName = "o", longName = "output", configName = "output")
     String outputPath = "";
 
+    @ConfigElement(shortName = "t", longName = "threads", configName = "threads", defaultValue = "0")
+    int threads;
+
+    @ConfigElement(shortName = "f", longName = "force", argCount = 0)
+    boolean force;
+
     @ConfigElement(shortName = "d", longName = "data", configName = "data")
     String dataPath = "";
+
+    @ConfigElement(shortName = "ep", longName = "publish", configName = "publish")
+    String publishPrefix = "";
 }
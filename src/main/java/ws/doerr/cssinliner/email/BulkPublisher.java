@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.email;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import ws.doerr.configuration.Configuration;
+import ws.doerr.cssinliner.email.EmailServiceProvider.PublishStatus;
+
+/**
+ * Publishes a whole set of templates to the ESP
+ *
+ * Templates are handed to the provider's asynchronous publish with at most a
+ * fixed number in flight at once, and no faster than the configured rate so
+ * the ESP doesn't start rejecting calls.
+ *
+ * @author greg
+ */
+public class BulkPublisher {
+    private final EmailServiceProvider provider;
+    private final int concurrency;
+    private final RateLimiter limiter;
+
+    /**
+     * A template to publish, a template without a body couldn't be rendered
+     * and is reported as failed
+     */
+    public static class Template {
+        private final String name;
+        private final String title;
+        private final String body;
+        private final Map<String, String> meta;
+
+        public Template(String name, String title, String body, Map<String, String> meta) {
+            this.name = name;
+            this.title = title;
+            this.body = body;
+            this.meta = meta;
+        }
+    }
+
+    /**
+     * Outcome of publishing a single template
+     */
+    public static class Outcome {
+        private final String name;
+        private final PublishStatus status;
+        private final String error;
+
+        Outcome(String name, PublishStatus status, Throwable error) {
+            this.name = name;
+            this.status = status;
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            this.error = cause != null ? cause.getClass().getSimpleName() + ": " + cause.getMessage() : null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the publish status, null if it failed
+         */
+        public PublishStatus getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Publisher for the current provider using the configured limits
+     */
+    public BulkPublisher() {
+        this(EmailService.get(), Configuration.get(EmailConfiguration.class));
+    }
+
+    private BulkPublisher(EmailServiceProvider provider, EmailConfiguration config) {
+        this(provider, config.bulkConcurrency, config.bulkRate);
+    }
+
+    /**
+     * @param provider
+     * @param concurrency maximum publishes in flight
+     * @param rate maximum publishes started per second, 0 for no limit
+     */
+    public BulkPublisher(EmailServiceProvider provider, int concurrency, double rate) {
+        this.provider = provider;
+        this.concurrency = Math.max(concurrency, 1);
+        this.limiter = rate > 0 ? RateLimiter.create(rate) : null;
+    }
+
+    /**
+     * Publish every template
+     * @param templates
+     * @param templateNamePrefix
+     * @return the outcome for each template in the same order
+     */
+    public CompletableFuture<List<Outcome>> publish(List<Template> templates, String templateNamePrefix) {
+        // Starting the publishes waits on the permits and the rate limiter,
+        // so that happens on the email executor rather than the caller
+        return CompletableFuture.supplyAsync(() -> {
+            Semaphore permits = new Semaphore(concurrency);
+            List<CompletableFuture<Outcome>> outcomes = new ArrayList<>();
+
+            for(Template template : templates) {
+                permits.acquireUninterruptibly();
+                if(limiter != null)
+                    limiter.acquire();
+
+                CompletableFuture<Outcome> outcome;
+                if(template.body == null) {
+                    permits.release();
+                    outcomes.add(CompletableFuture.completedFuture(new Outcome(template.name, null,
+                            new IllegalStateException("Template hasn't been rendered"))));
+                    continue;
+                }
+
+                try {
+                    outcome = provider.publishAsync(template.title, template.body, template.meta, templateNamePrefix)
+                            .handle((status, ex) -> new Outcome(template.name, status, ex));
+                } catch(Exception ex) {
+                    outcome = CompletableFuture.completedFuture(new Outcome(template.name, null, ex));
+                }
+
+                outcome.whenComplete((rc, ex) -> permits.release());
+                outcomes.add(outcome);
+            }
+
+            return outcomes;
+        }, EmailService.getExecutor()).thenCompose(outcomes ->
+            CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[outcomes.size()]))
+                    .thenApply(done -> outcomes.stream()
+                            .map(CompletableFuture::join)
+                            .collect(Collectors.toList())));
+    }
+}
@@ -33,9 +33,17 @@ import ws.doerr.configuration.ConfigHelp;
  */
 @ConfigFragment()
 @ConfigHelp(value = {
-    "\t-ec, -emailclass\t\t\tClass name to use to connect to the backend email service\n"
+    "\t-ec, -emailclass\t\t\tClass name to use to connect to the backend email service\n",
+    "\t-bc, --bulkconcurrency\t\t\tTemplates published at once by a bulk publish (defaults to 8)\n",
+    "\t-br, --bulkrate\t\t\t\tTemplates published per second by a bulk publish, 0 for no\n\t\t\t\t\t\tlimit (defaults to 10)\n"
 }, priority = 10)
 public class EmailConfiguration {
     @ConfigElement(shortName = "ec", longName = "emailclass", configName = "emailclass", defaultValue = "ws.doerr.cssinliner.email.mandrill.MandrillEmailService")
     String emailClassName;
+
+    @ConfigElement(shortName = "bc", longName = "bulkconcurrency", configName = "bulkconcurrency", defaultValue = "8")
+    int bulkConcurrency;
+
+    @ConfigElement(shortName = "br", longName = "bulkrate", configName = "bulkrate", defaultValue = "10")
+    double bulkRate;
 }
@@ -23,8 +23,11 @@
  */
 package ws.doerr.cssinliner.email;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import ws.doerr.configuration.Configuration;
@@ -39,6 +42,13 @@ public class EmailService {
     private static EmailService instance;
     private static final Boolean LOCK = false;
 
+    // Runs the blocking calls of providers without an asynchronous client
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("email-%d")
+                    .setDaemon(true)
+                    .build());
+
     private EmailServiceProvider provider;
     private final Map<String, String> providers = new HashMap<>();
     private String providerName;
@@ -68,6 +78,10 @@ public class EmailService {
         return getInstance().provider;
     }
 
+    public static ExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+
     public static Map<String, String> getAvailable() {
         return getInstance().providers;
     }
@@ -77,6 +91,14 @@ public class EmailService {
         getInstance().setProvider();
     }
 
+    /**
+     * Shut down the current provider
+     */
+    public static void shutdown() {
+        if(instance != null && instance.provider != null)
+            instance.provider.shutdown();
+    }
+
     public static String getProvider() {
         return getInstance().providerName;
     }
@@ -84,7 +106,11 @@ public class EmailService {
     private void setProvider() {
         try {
             Class<?> providerClass = Class.forName(providerName);
+            EmailServiceProvider previous = provider;
             provider = (EmailServiceProvider) providerClass.newInstance();
+
+            if(previous != null)
+                previous.shutdown();
         } catch(ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
             LOG.log(Level.SEVERE, "Exception instantiating Email Service Provider", ex);
         }
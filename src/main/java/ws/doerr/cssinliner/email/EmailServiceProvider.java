@@ -27,6 +27,8 @@ import com.github.jknack.handlebars.Helper;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  *  Abstract Email Service
@@ -41,6 +43,19 @@ public interface EmailServiceProvider {
      */
     String sendEmail(List<String> to, String title, String content);
 
+    /**
+     * Send an email without blocking the caller. Providers that have an
+     * asynchronous client should override this, by default the blocking call
+     * runs on the shared email executor.
+     * @param to list of email addresses to send the emails to
+     * @param title title of the email
+     * @param content html formatted email body
+     * @return
+     */
+    default CompletableFuture<String> sendEmailAsync(List<String> to, String title, String content) {
+        return CompletableFuture.supplyAsync(() -> sendEmail(to, title, content), EmailService.getExecutor());
+    }
+
     /**
      * Get the list of Handlebars Helpers specific to the ESP
      *
@@ -59,6 +74,40 @@ public interface EmailServiceProvider {
      */
     boolean isChanged(String body, Map<String, String> meta, String templateNamePrefix) throws Exception;
 
+    /**
+     * Asynchronous version of isChanged
+     *
+     * @param body
+     * @param meta
+     * @param templateNamePrefix
+     * @return
+     */
+    default CompletableFuture<Boolean> isChangedAsync(String body, Map<String, String> meta, String templateNamePrefix) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return isChanged(body, meta, templateNamePrefix);
+            } catch(Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, EmailService.getExecutor());
+    }
+
+    /**
+     * Bring the provider's view of the ESP up to date with a single listing
+     * of every template, so the isChanged checks that follow don't each need
+     * a call. Providers that can't list templates complete straight away.
+     *
+     * @return
+     */
+    default CompletableFuture<Void> syncAsync() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Release anything the provider holds on to, called when it's replaced
+     */
+    default void shutdown() {}
+
     /**
      * Status of a publish activity
      */
@@ -79,4 +128,23 @@ public interface EmailServiceProvider {
      * @throws Exception
      */
     PublishStatus publish(String title, String body, Map<String, String> meta, String templateNamePrefix) throws Exception;
+
+    /**
+     * Asynchronous version of publish
+     * @param title email title
+     * @param body html formatted email body
+     * @param meta ESP specific metadata tags
+     * @param templateNamePrefix template name prefix
+     *
+     * @return
+     */
+    default CompletableFuture<PublishStatus> publishAsync(String title, String body, Map<String, String> meta, String templateNamePrefix) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return publish(title, body, meta, templateNamePrefix);
+            } catch(Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, EmailService.getExecutor());
+    }
 }
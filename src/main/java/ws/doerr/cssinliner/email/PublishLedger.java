@@ -0,0 +1,193 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.email;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local record of what has been published to the ESP
+ *
+ * Holds the content hash and time of the last publish for every template
+ * name, prefix included, so a provider can tell if a template has changed
+ * without downloading it again. The ledger is only as good as the last
+ * publish or reconcile, anything edited directly on the ESP isn't seen until
+ * the provider reconciles.
+ *
+ * @author greg
+ */
+public class PublishLedger {
+    private static final Logger LOG = Logger.getLogger(PublishLedger.class.getName());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final String account;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Json Utility Class - persisted ledger
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    static class Ledger {
+        int version = VERSION;
+        String account;
+        Map<String, Entry> entries = new TreeMap<>();
+    }
+
+    /**
+     * Json Utility Class - last published state of a single template
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    public static class Entry {
+        String hash;
+        long published;
+
+        Entry() {}
+
+        Entry(String hash, long published) {
+            this.hash = hash;
+            this.published = published;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return when the content was published, or first seen on the ESP
+         */
+        public long getPublished() {
+            return published;
+        }
+    }
+
+    /**
+     * Load a ledger. A missing or unreadable ledger, or one written for a
+     * different account, results in an empty one so everything is checked
+     * against the ESP.
+     * @param file
+     * @param account identifies the ESP account the templates are published to
+     * @return
+     */
+    public static PublishLedger load(Path file, String account) {
+        PublishLedger rc = new PublishLedger(file.toAbsolutePath(), account);
+
+        if(rc.file.toFile().exists()) {
+            try {
+                Ledger ledger = MAPPER.readValue(rc.file.toFile(), Ledger.class);
+                if(ledger.version == VERSION && account.equals(ledger.account))
+                    rc.entries.putAll(ledger.entries);
+            } catch(IOException ex) {
+                LOG.log(Level.WARNING, "Ignoring unreadable publish ledger " + rc.file, ex);
+            }
+        }
+
+        return rc;
+    }
+
+    private PublishLedger(Path file, String account) {
+        this.file = file;
+        this.account = account;
+    }
+
+    /**
+     * @param name template name
+     * @return the last published state, null if the template isn't known
+     */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Record the content of a template as it is on the ESP. The publish time
+     * is kept if the content is the same as already recorded.
+     * @param name template name
+     * @param hash content hash
+     */
+    public void record(String name, String hash) {
+        Entry current = entries.get(name);
+        if(current != null && current.hash.equals(hash))
+            return;
+
+        entries.merge(name, new Entry(hash, System.currentTimeMillis()),
+                (previous, next) -> previous.hash.equals(next.hash) ? previous : next);
+        save();
+    }
+
+    /**
+     * Replace the ledger with a listing of the ESP. Publish times are kept for
+     * templates that haven't changed. Anything recorded since the listing
+     * was requested is newer than the listing and is left alone.
+     * @param hashes content hash of every template on the ESP by name
+     * @param since when the listing was requested
+     */
+    public void replace(Map<String, String> hashes, long since) {
+        long now = System.currentTimeMillis();
+
+        entries.entrySet().removeIf(entry ->
+                !hashes.containsKey(entry.getKey()) && entry.getValue().published < since);
+
+        hashes.forEach((name, hash) -> entries.compute(name, (key, current) -> {
+            if(current != null && (current.published >= since || current.hash.equals(hash)))
+                return current;
+            return new Entry(hash, now);
+        }));
+
+        save();
+    }
+
+    /**
+     * Drop a template, its state is unknown until it's checked on the ESP
+     * @param name template name
+     */
+    public void forget(String name) {
+        if(entries.remove(name) != null)
+            save();
+    }
+
+    public synchronized void save() {
+        Ledger ledger = new Ledger();
+        ledger.account = account;
+        ledger.entries.putAll(entries);
+
+        try {
+            file.getParent().toFile().mkdirs();
+            MAPPER.writeValue(file.toFile(), ledger);
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Exception writing publish ledger " + file, ex);
+        }
+    }
+}
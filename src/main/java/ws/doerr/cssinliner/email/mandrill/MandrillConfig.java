@@ -48,7 +48,35 @@ public class MandrillConfig {
     @ConfigElement(shortName = "mfe", longName = "mandrillfromemail", configName = "mandrillfromemail", defaultValue = "test@service.clearcontract.com")
     String mandrillFromEmail;
 
-    @ConfigHelp({"\t-mfn, --mandrillfromname\t\tMandrill From Name\n"})
+    @ConfigHelp({"\t-mfn, --mandrillfromname\t\tMandrill From Name"})
     @ConfigElement(shortName = "mfn", longName = "mandrillfromname", configName = "mandrillfromname", defaultValue = "Email Test Service")
     String mandrillFromName;
+
+    @ConfigHelp({"\t-mct, --mandrillconnecttimeout\t\tMandrill connect timeout in ms (defaults to 5000)"})
+    @ConfigElement(shortName = "mct", longName = "mandrillconnecttimeout", configName = "mandrillconnecttimeout", defaultValue = "5000")
+    int connectTimeout;
+
+    @ConfigHelp({"\t-mrt, --mandrillreadtimeout\t\tMandrill read timeout in ms (defaults to 30000)"})
+    @ConfigElement(shortName = "mrt", longName = "mandrillreadtimeout", configName = "mandrillreadtimeout", defaultValue = "30000")
+    int readTimeout;
+
+    @ConfigHelp({"\t-mmc, --mandrillmaxconnections\t\tMaximum pooled connections to Mandrill (defaults to 20)"})
+    @ConfigElement(shortName = "mmc", longName = "mandrillmaxconnections", configName = "mandrillmaxconnections", defaultValue = "20")
+    int maxConnections;
+
+    @ConfigHelp({"\t-mlf, --mandrillledger\t\t\tFile recording what was last published to Mandrill (defaults to\n",
+        "\t\t\t\t\t\t.cssinliner/mandrill-ledger-<account>.json in the home folder, one\n",
+        "\t\t\t\t\t\tfor each API key and subaccount)"})
+    @ConfigElement(shortName = "mlf", longName = "mandrillledger", configName = "mandrillledger")
+    String ledgerFile = "";
+
+    @ConfigHelp({"\t-mls, --mandrillsyncinterval\t\tSeconds a listing of every Mandrill template is reused for\n",
+        "\t\t\t\t\t\tworkspace status checks (defaults to 60)"})
+    @ConfigElement(shortName = "mls", longName = "mandrillsyncinterval", configName = "mandrillsyncinterval", defaultValue = "60")
+    int syncInterval;
+
+    @ConfigHelp({"\t-mlr, --mandrillreconcile\t\tMinutes between checks of the ledger against Mandrill, 0 to\n",
+        "\t\t\t\t\t\tnever check (defaults to 0)\n"})
+    @ConfigElement(shortName = "mlr", longName = "mandrillreconcile", configName = "mandrillreconcile", defaultValue = "0")
+    int reconcileMinutes;
 }
@@ -25,61 +25,145 @@ package ws.doerr.cssinliner.email.mandrill;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import ws.doerr.cssinliner.email.EmailServiceProvider;
-import ws.doerr.httpserver.Server;
+import ws.doerr.cssinliner.email.PublishLedger;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.jknack.handlebars.Helper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.DatatypeConverter;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.client.ClientProperties;
 import ws.doerr.configuration.Configuration;
 
 /**
+ *
+ * Calls to Mandrill go through a pooled keep alive client and are
+ * asynchronous, the blocking methods wait on the asynchronous ones.
+ *
+ * What was last published is kept in a local ledger, checking a template that
+ * is already in the ledger doesn't call Mandrill at all. The ledger can be
+ * reconciled against Mandrill periodically to pick up edits made there, that
+ * takes a single listing of every template.
  *
  * @author greg
  */
 public class MandrillEmailService implements EmailServiceProvider {
     private static final Logger LOG = Logger.getLogger(MandrillEmailService.class.getName());
 
+    // Own mapper as the http server isn't running in batch mode
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     private static final String MANDRILL_URL = "https://mandrillapp.com/api/1.0/";
+    private static final String MANDRILL_SEND = "messages/send.json";
     private static final String MANDRILL_UPDATETEMPLATE = "templates/update.json";
     private static final String MANDRILL_ADDTEMPLATE = "templates/add.json";
     private static final String MANDRILL_TEMPLATEINFO = "templates/info.json";
+    private static final String MANDRILL_LISTTEMPLATES = "templates/list.json";
 
     private static final String META_TEMPLATE_NAME = "mandrill-template";
     private static final String META_LABELS = "mandrill-labels";
 
+    private final Client client;
     private final WebTarget target;
     private final MandrillConfig config;
     private final SimpleDateFormat formatter;
+    private final PublishLedger ledger;
+    private final ScheduledExecutorService reconciler;
+
+    private final Object syncLock = new Object();
+    private CompletableFuture<Void> syncing;
+    private volatile long lastSync;
 
     public MandrillEmailService() {
         formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
 
         config = Configuration.get(MandrillConfig.class);
-        Client client = ClientBuilder.newClient();
+
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+        pool.setMaxTotal(config.maxConnections);
+        pool.setDefaultMaxPerRoute(config.maxConnections);
+
+        ClientConfig clientConfig = new ClientConfig()
+                .connectorProvider(new ApacheConnectorProvider())
+                .property(ApacheClientProperties.CONNECTION_MANAGER, pool)
+                .property(ClientProperties.CONNECT_TIMEOUT, config.connectTimeout)
+                .property(ClientProperties.READ_TIMEOUT, config.readTimeout)
+                .property(ClientProperties.ASYNC_THREADPOOL_SIZE, config.maxConnections);
+
+        client = ClientBuilder.newClient(clientConfig);
         target = client.target(MANDRILL_URL);
+
+        // Templates differ between accounts, each account gets its own ledger
+        String account = Hashing.sha256()
+                .hashString(Strings.nullToEmpty(config.mandrillKey) + "/" + Strings.nullToEmpty(config.mandrillSubacct), Charsets.UTF_8)
+                .toString()
+                .substring(0, 16);
+
+        ledger = PublishLedger.load(config.ledgerFile.isEmpty()
+                ? Paths.get(System.getProperty("user.home"), ".cssinliner", "mandrill-ledger-" + account + ".json")
+                : Paths.get(config.ledgerFile), account);
+
+        if(config.reconcileMinutes > 0) {
+            reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("mandrill-reconcile")
+                    .setDaemon(true)
+                    .build());
+            reconciler.scheduleWithFixedDelay(this::reconcile, config.reconcileMinutes, config.reconcileMinutes, TimeUnit.MINUTES);
+        } else
+            reconciler = null;
+    }
+
+    @Override
+    public void shutdown() {
+        if(reconciler != null)
+            reconciler.shutdownNow();
+
+        // Also shuts down the connection pool
+        client.close();
     }
 
     @Override
     public String sendEmail(List<String> emails, String title, String content) {
-        ObjectNode data = Server.getMapper().createObjectNode();
+        return sendEmailAsync(emails, title, content).join();
+    }
+
+    @Override
+    public CompletableFuture<String> sendEmailAsync(List<String> emails, String title, String content) {
+        ObjectNode data = MAPPER.createObjectNode();
         data.put("key", config.mandrillKey);
 
         ObjectNode message = data.putObject("message");
@@ -98,15 +182,12 @@ public class MandrillEmailService implements EmailServiceProvider {
 
         message.put("merge", false);
 
-        Response rsp = target
-                .path("/messages/send.json")
-                .request()
-                .post(Entity.entity(data, MediaType.APPLICATION_JSON_TYPE));
-
-        String rc = rsp.readEntity(String.class);
-        LOG.log(Level.INFO, "Send = {0}", rc);
+        return post(MANDRILL_SEND, data).thenApply(rsp -> {
+            String rc = rsp.readEntity(String.class);
+            LOG.log(Level.INFO, "Send = {0}", rc);
 
-        return rc;
+            return rc;
+        });
     }
 
     private void addTo(ArrayNode to, String email) {
@@ -126,65 +207,194 @@ public class MandrillEmailService implements EmailServiceProvider {
         return HELPERS;
     }
 
+    @Override
     public boolean isChanged(String body, Map<String, String> meta, String templateNamePrefix) throws Exception {
-        try {
-            String templateName = templateNamePrefix + meta.get(META_TEMPLATE_NAME);
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return await(isChangedAsync(body, meta, templateNamePrefix));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isChangedAsync(String body, Map<String, String> meta, String templateNamePrefix) {
+        String templateName = templateNamePrefix + meta.get(META_TEMPLATE_NAME);
+        String hash = hash(body);
+
+        PublishLedger.Entry entry = ledger.get(templateName);
+        if(entry != null)
+            return CompletableFuture.completedFuture(!entry.getHash().equals(hash));
 
-            // Get the hash from the current document
-            String hash = DatatypeConverter.printHexBinary(digest.digest(body.getBytes("UTF-8")));
-            String template = getTemplate(templateName);
+        // A recent listing didn't have it so it isn't on Mandrill
+        if(isSynced())
+            return CompletableFuture.completedFuture(true);
 
-            if(template == null) {
+        return getTemplate(templateName).thenApply(template -> {
+            if(template == null)
                 return true;
-            } else {
-                String templateHash = DatatypeConverter.printHexBinary(digest.digest(template.getBytes("UTF-8")));
-                return templateHash.equals(hash);
-            }
-        } catch(IOException ex) {
-            LOG.log(Level.SEVERE, "Exception communicating with Mandrill", ex);
-            throw ex;
-        } catch(NoSuchAlgorithmException ex) {
-            LOG.log(Level.SEVERE, "Exception getting SHA-256 digest instance", ex);
-            throw ex;
-        }
+
+            String published = hash(template);
+            ledger.record(templateName, published);
+            return !published.equals(hash);
+        });
     }
 
     @Override
     public PublishStatus publish(String title, String body, Map<String, String> meta, String templateNamePrefix) throws Exception {
-        try {
-            String templateName = templateNamePrefix + meta.get(META_TEMPLATE_NAME);
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return await(publishAsync(title, body, meta, templateNamePrefix));
+    }
 
-            // Get the hash from the current document
-            String hash = DatatypeConverter.printHexBinary(digest.digest(body.getBytes("UTF-8")));
-            String template = getTemplate(templateName);
+    @Override
+    public CompletableFuture<PublishStatus> publishAsync(String title, String body, Map<String, String> meta, String templateNamePrefix) {
+        String templateName = templateNamePrefix + meta.get(META_TEMPLATE_NAME);
+
+        String[] labels = meta.containsKey(META_LABELS)
+                ? meta.get(META_LABELS).split(",")
+                : new String[]{};
 
-            String[] labels = new String[]{};
-            if(meta.containsKey(META_LABELS))
-                labels = meta.get(META_LABELS).split(",");
+        String hash = hash(body);
 
-            if(template == null) {
-                addTemplate(templateName, title, body, labels);
-                return PublishStatus.ADDED;
-            } else {
-                String templateHash = DatatypeConverter.printHexBinary(digest.digest(template.getBytes("UTF-8")));
-                if(templateHash.equals(hash))
-                    return PublishStatus.NO_CHANGE;
+        PublishLedger.Entry entry = ledger.get(templateName);
+        if(entry != null && entry.getHash().equals(hash))
+            return CompletableFuture.completedFuture(PublishStatus.NO_CHANGE);
 
-                updateTemplate(templateName, title, body, labels);
-                return PublishStatus.UPDATED;
+        return getTemplate(templateName).thenCompose(template -> {
+            if(template == null)
+                return addTemplate(templateName, title, body, labels)
+                        .thenApply(ok -> published(ok, templateName, hash, PublishStatus.ADDED));
+
+            if(hash(template).equals(hash)) {
+                ledger.record(templateName, hash);
+                return CompletableFuture.completedFuture(PublishStatus.NO_CHANGE);
             }
 
+            return updateTemplate(templateName, title, body, labels)
+                    .thenApply(ok -> published(ok, templateName, hash, PublishStatus.UPDATED));
+        });
+    }
+
+    /**
+     * Keep the ledger in step with a save to Mandrill, a save Mandrill
+     * rejected fails the publish
+     */
+    private PublishStatus published(boolean ok, String templateName, String hash, PublishStatus status) {
+        if(!ok) {
+            ledger.forget(templateName);
+            throw new IllegalStateException("Mandrill rejected template " + templateName);
+        }
+
+        ledger.record(templateName, hash);
+        return status;
+    }
+
+    /**
+     * Check the ledger against Mandrill, picking up edits and deletes made
+     * outside of the inliner
+     */
+    private void reconcile() {
+        try {
+            sync().get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException ex) {
+            LOG.log(Level.WARNING, "Exception reconciling the publish ledger", ex.getCause());
+        }
+    }
+
+    /**
+     * Sync the ledger unless it was synced within the sync interval
+     */
+    @Override
+    public CompletableFuture<Void> syncAsync() {
+        if(isSynced())
+            return CompletableFuture.completedFuture(null);
+
+        return sync();
+    }
+
+    /**
+     * @return true if the ledger was synced within the sync interval
+     */
+    private boolean isSynced() {
+        return System.currentTimeMillis() - lastSync < TimeUnit.SECONDS.toMillis(config.syncInterval);
+    }
+
+    /**
+     * Replace the ledger with a listing of every template on Mandrill. Callers
+     * that arrive while a listing is in progress share it.
+     */
+    private CompletableFuture<Void> sync() {
+        synchronized(syncLock) {
+            if(syncing != null)
+                return syncing;
+
+            long started = System.currentTimeMillis();
+            CompletableFuture<Void> rc = listTemplates().thenAccept(templates -> {
+                Map<String, String> hashes = new HashMap<>();
+                templates.forEach((name, code) -> hashes.put(name, hash(code)));
+
+                ledger.replace(hashes, started);
+                lastSync = started;
+            });
+
+            syncing = rc;
+            rc.whenComplete((ok, ex) -> {
+                synchronized(syncLock) {
+                    syncing = null;
+                }
+            });
+
+            return rc;
+        }
+    }
+
+    private static String hash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return DatatypeConverter.printHexBinary(digest.digest(content.getBytes("UTF-8")));
         } catch(IOException ex) {
-            LOG.log(Level.SEVERE, "Exception communicating with Mandrill", ex);
-            throw ex;
+            throw new UncheckedIOException(ex);
         } catch(NoSuchAlgorithmException ex) {
             LOG.log(Level.SEVERE, "Exception getting SHA-256 digest instance", ex);
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Wait for an asynchronous call, rethrowing whatever made it fail
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            LOG.log(Level.SEVERE, "Exception communicating with Mandrill", cause);
+            if(cause instanceof Exception)
+                throw (Exception) cause;
             throw ex;
         }
     }
 
+    /**
+     * Post a request to Mandrill on the pooled client
+     */
+    private CompletableFuture<Response> post(String path, Object entity) {
+        CompletableFuture<Response> rc = new CompletableFuture<>();
+
+        target.path(path)
+                .request()
+                .async()
+                .post(Entity.entity(entity, MediaType.APPLICATION_JSON_TYPE), new InvocationCallback<Response>() {
+                    @Override
+                    public void completed(Response response) {
+                        rc.complete(response);
+                    }
+
+                    @Override
+                    public void failed(Throwable throwable) {
+                        rc.completeExceptionally(throwable);
+                    }
+                });
+
+        return rc;
+    }
+
     /**
      * Json Utility Class - Mandrill Template Info Request
      */
@@ -194,23 +404,60 @@ public class MandrillEmailService implements EmailServiceProvider {
         String name;
     }
 
-    private String getTemplate(String name) throws IOException {
+    private CompletableFuture<String> getTemplate(String name) {
         MandrillInfoRequest request = new MandrillInfoRequest();
         request.key = config.mandrillKey;
         request.name = name;
 
-        Response rsp = target
-                .path(MANDRILL_TEMPLATEINFO)
-                .request()
-                .post(Entity.entity(request, MediaType.APPLICATION_JSON_TYPE));
+        return post(MANDRILL_TEMPLATEINFO, request).thenApply(rsp -> {
+            try {
+                if(rsp.getStatus() == 200) {
+                    String json = rsp.readEntity(String.class);
+                    JsonNode response = MAPPER.readTree(json);
+
+                    return response.get("code").asText();
+                } else
+                    return null;
+            } catch(IOException ex) {
+                throw new CompletionException(ex);
+            } finally {
+                rsp.close();
+            }
+        });
+    }
+
+    /**
+     * Json Utility Class - Mandrill Template List Request
+     */
+    @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+    static class MandrillListRequest {
+        String key;
+    }
 
-        if(rsp.getStatus() == 200) {
-            String json = rsp.readEntity(String.class);
-            JsonNode response = Server.getMapper().readTree(json);
+    /**
+     * @return the code of every template by name
+     */
+    private CompletableFuture<Map<String, String>> listTemplates() {
+        MandrillListRequest request = new MandrillListRequest();
+        request.key = config.mandrillKey;
 
-            return response.get("code").asText();
-        } else
-            return null;
+        return post(MANDRILL_LISTTEMPLATES, request).thenApply(rsp -> {
+            try {
+                String json = rsp.readEntity(String.class);
+                if(rsp.getStatus() != 200)
+                    throw new IllegalStateException("Mandrill template list failed: " + json);
+
+                Map<String, String> rc = new HashMap<>();
+                for(JsonNode template : MAPPER.readTree(json))
+                    rc.put(template.get("name").asText(), template.path("code").asText());
+
+                return rc;
+            } catch(IOException ex) {
+                throw new CompletionException(ex);
+            } finally {
+                rsp.close();
+            }
+        });
     }
 
     @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
@@ -223,29 +470,15 @@ public class MandrillEmailService implements EmailServiceProvider {
         boolean publish;
     }
 
-    private boolean addTemplate(String templateName, String subject, String html, String[] keywords) {
-        MandrillAddRequest add = new MandrillAddRequest();
-        add.key = config.mandrillKey;
-        add.name = templateName;
-        add.subject = subject;
-        add.code = html;
-        add.labels = keywords;
-        add.publish = true;
-
-        Response rsp = target
-                .path(MANDRILL_ADDTEMPLATE)
-                .request()
-                .post(Entity.entity(add, MediaType.APPLICATION_JSON_TYPE));
+    private CompletableFuture<Boolean> addTemplate(String templateName, String subject, String html, String[] keywords) {
+        return saveTemplate(MANDRILL_ADDTEMPLATE, templateName, subject, html, keywords);
+    }
 
-        if(rsp.getStatus() == 200)
-            return true;
-        else {
-            LOG.log(Level.INFO, "Mandrill Error rc = {0}", rsp.getStatusInfo().getReasonPhrase());
-            return false;
-        }
+    private CompletableFuture<Boolean> updateTemplate(String templateName, String subject, String html, String[] keywords) {
+        return saveTemplate(MANDRILL_UPDATETEMPLATE, templateName, subject, html, keywords);
     }
 
-    private boolean updateTemplate(String templateName, String subject, String html, String[] keywords) {
+    private CompletableFuture<Boolean> saveTemplate(String path, String templateName, String subject, String html, String[] keywords) {
         MandrillAddRequest add = new MandrillAddRequest();
         add.key = config.mandrillKey;
         add.name = templateName;
@@ -254,16 +487,17 @@ public class MandrillEmailService implements EmailServiceProvider {
         add.labels = keywords;
         add.publish = true;
 
-        Response rsp = target
-                .path(MANDRILL_UPDATETEMPLATE)
-                .request()
-                .post(Entity.entity(add, MediaType.APPLICATION_JSON_TYPE));
-
-        if(rsp.getStatus() == 200)
-            return true;
-        else {
-            LOG.log(Level.INFO, "Mandrill Error rc = {0}", rsp.getStatusInfo().getReasonPhrase());
-            return false;
-        }
+        return post(path, add).thenApply(rsp -> {
+            try {
+                if(rsp.getStatus() == 200)
+                    return true;
+                else {
+                    LOG.log(Level.INFO, "Mandrill Error rc = {0}", rsp.getStatusInfo().getReasonPhrase());
+                    return false;
+                }
+            } finally {
+                rsp.close();
+            }
+        });
     }
 }
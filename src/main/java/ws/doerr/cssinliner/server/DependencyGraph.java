@@ -0,0 +1,192 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Dependency graph between source files and everything they pull in
+ *
+ * Nodes are normalized paths. Forward edges run from a file to the files it
+ * depends on (source to template, fragments, stylesheets and data), reverse
+ * edges run the other way. Source nodes are tied to the instance rendering
+ * them. A change to any node resolves to the instances that depend on it,
+ * directly or transitively, by walking the reverse edges from that node only.
+ *
+ * @author greg
+ */
+public class DependencyGraph {
+    private final Map<Path, Set<Path>> dependencies = new HashMap<>();  // Node to the nodes it depends on
+    private final Map<Path, Set<Path>> dependents = new HashMap<>();    // Node to the nodes depending on it
+    private final Map<Path, UUID> sources = new HashMap<>();            // Source node to Instance ID
+
+    /**
+     * Register a source file as the root of an instance
+     * @param id instance id
+     * @param source
+     */
+    public synchronized void addSource(UUID id, Path source) {
+        sources.put(source.normalize(), id);
+    }
+
+    /**
+     * Remove a source file and prune any nodes that were only there for it
+     * @param source
+     * @return the id of the instance the source belonged to, or null
+     */
+    public synchronized UUID removeSource(Path source) {
+        Path node = source.normalize();
+        UUID id = sources.remove(node);
+        setDependencies(node, Collections.emptySet());
+        prune(node);
+        return id;
+    }
+
+    /**
+     * @param path
+     * @return the instance whose source is path, or null
+     */
+    public synchronized UUID getSource(Path path) {
+        return sources.get(path.normalize());
+    }
+
+    /**
+     * Replace the dependencies of a node
+     * @param node
+     * @param paths everything node now depends on
+     * @return true if the dependencies changed
+     */
+    public synchronized boolean setDependencies(Path node, Collection<Path> paths) {
+        Path from = node.normalize();
+
+        Set<Path> current = new HashSet<>();
+        paths.forEach(path -> current.add(path.normalize()));
+        current.remove(from);
+
+        Set<Path> previous = dependencies.getOrDefault(from, Collections.emptySet());
+        if(previous.equals(current))
+            return false;
+
+        if(current.isEmpty())
+            dependencies.remove(from);
+        else
+            dependencies.put(from, current);
+
+        for(Path to : current)
+            dependents.computeIfAbsent(to, k -> new HashSet<>()).add(from);
+
+        // Update the edges before pruning so a cycle can't loop
+        List<Path> removed = new ArrayList<>();
+        for(Path to : previous) {
+            if(!current.contains(to)) {
+                Set<Path> back = dependents.get(to);
+                if(back != null)
+                    back.remove(from);
+                removed.add(to);
+            }
+        }
+        removed.forEach(this::prune);
+
+        return true;
+    }
+
+    /**
+     * Find every instance affected by a change to a node
+     * @param path changed node
+     * @return instance ids ordered so each node comes before anything that
+     * depends on it
+     */
+    public synchronized List<UUID> getAffected(Path path) {
+        Path start = path.normalize();
+        if(!dependents.containsKey(start) && !sources.containsKey(start))
+            return Collections.emptyList();
+
+        // Iterative depth first walk of the reverse edges. The reversed post
+        // order is a topological order of the affected sub graph
+        Set<Path> visited = new HashSet<>();
+        Deque<Path> order = new ArrayDeque<>();
+        Deque<Iterator<Path>> stack = new ArrayDeque<>();
+        Deque<Path> nodes = new ArrayDeque<>();
+
+        visited.add(start);
+        nodes.push(start);
+        stack.push(dependents.getOrDefault(start, Collections.emptySet()).iterator());
+
+        while(!stack.isEmpty()) {
+            Iterator<Path> it = stack.peek();
+            if(it.hasNext()) {
+                Path next = it.next();
+                if(visited.add(next)) {
+                    nodes.push(next);
+                    stack.push(dependents.getOrDefault(next, Collections.emptySet()).iterator());
+                }
+            } else {
+                stack.pop();
+                order.push(nodes.pop());
+            }
+        }
+
+        List<UUID> rc = new ArrayList<>();
+        order.forEach(node -> {
+            UUID id = sources.get(node);
+            if(id != null)
+                rc.add(id);
+        });
+        return rc;
+    }
+
+    /**
+     * @return every node something depends on
+     */
+    public synchronized Set<Path> getDependencyNodes() {
+        return new LinkedHashSet<>(dependents.keySet());
+    }
+
+    /**
+     * Drop a node that nothing references anymore, cascading to its own
+     * dependencies
+     */
+    private void prune(Path node) {
+        Set<Path> back = dependents.get(node);
+        if(back != null && !back.isEmpty())
+            return;
+
+        dependents.remove(node);
+        if(!sources.containsKey(node) && dependencies.containsKey(node))
+            setDependencies(node, Collections.emptySet());
+    }
+}
@@ -23,11 +23,14 @@
  */
 package ws.doerr.cssinliner.server;
 
+import ws.doerr.cssinliner.server.RebuildScheduler.Priority;
 import ws.doerr.httpserver.Server;
+import ws.doerr.httpserver.SocketHandler;
 import ws.doerr.monitor.Monitor;
 import ws.doerr.monitor.MonitorHandler;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.jknack.handlebars.Context;
 import com.github.jknack.handlebars.Handlebars;
 import com.github.jknack.handlebars.HandlebarsException;
@@ -37,29 +40,44 @@ import com.github.jknack.handlebars.Options;
 import com.github.jknack.handlebars.Template;
 import com.github.jknack.handlebars.helper.StringHelpers;
 import com.github.jknack.handlebars.io.FileTemplateLoader;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.github.jknack.handlebars.io.TemplateLoader;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.glassfish.grizzly.websockets.WebSocket;
+import ws.doerr.configuration.Configuration;
 import ws.doerr.cssinliner.email.EmailService;
 import ws.doerr.projects.emailtemplates.ProcessorContext;
 import ws.doerr.projects.emailtemplates.TemplateProcessor;
@@ -73,36 +91,47 @@ public class InlinerApp {
 
     private static InlinerApp instance;
 
-    private final TemplateProcessor inliner = new TemplateProcessor();
+    private static final Pattern TITLE = Pattern.compile("<title[^>]*>(.*?)</title>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final ThreadLocal<TemplateProcessor> inliner = ThreadLocal.withInitial(TemplateProcessor::new);
     private final Handlebars handlebars;
+    private final InteractiveConfiguration config = Configuration.get(InteractiveConfiguration.class);
+
+    private final RebuildScheduler scheduler = new RebuildScheduler(config.renderThreads, this::render, this::rendered, this::priority);
 
     private MonitorHandler sourceHandler = new SourceHandler();
     private MonitorHandler dependencyHandler = new DependencyHandler();
     private MonitorHandler dataHandler = new DataHandler();
 
-    private Map<UUID, SourceInstance> sources = new HashMap<>();                // Instance ID to instance
-    private Multimap<String, UUID> pathToInstance = HashMultimap.create();      // Source path to Instance ID
+    private final Map<UUID, SourceInstance> sources = new ConcurrentHashMap<>();    // Instance ID to instance
+    private final DependencyGraph graph = new DependencyGraph();
+    private final UpdateEncoder updates = new UpdateEncoder();
+    private final RenderService renderService = new RenderService(this, config.renderThreads);
+
+    private final Path sourceFolder;
+    private final Path dataFolder;
+    private final Path workingFolder;
+    private volatile Set<Path> folders = ImmutableSet.of();                     // Watched dependency folders
 
-    private Set<String> folders = new HashSet<>();
+    private final Map<UUID, CompiledTemplate> templates = new ConcurrentHashMap<>();    // Instance ID to compiled template
+    private final Map<Path, JsonNode> data = new ConcurrentHashMap<>();                 // Data path to parsed json
 
     private InlinerApp(Path sourceFolder, Path dataFolder) throws Exception {
         TempFolder workingFolder = new TempFolder("cssinline");
+        this.sourceFolder = sourceFolder;
+        this.dataFolder = dataFolder.normalize();
+        this.workingFolder = workingFolder.getPath();
 
         // Start the Http Server
         Server.start(getClass().getPackage().getName());
         Server.registerWebsocket("/connect");
+        Server.setSocketHandler(new ClientHandler());
+        Server.registerHandler(new PreviewHandler(), PreviewHandler.MAPPING);
 
         // Setup Handlebars
         FileTemplateLoader loader = new FileTemplateLoader(workingFolder.getFile());
         loader.setSuffix("");
-        handlebars = new Handlebars(loader);
-
-        StringHelpers.register(handlebars);
-        handlebars.registerHelper("dateFormat", new DateHelper());
-
-        EmailService.get().getHelpers().forEach((tag, helper) -> {
-            handlebars.registerHelper(tag, helper);
-        });
+        handlebars = handlebars(loader);
 
         // List all the source files from the folder
         File[] files = sourceFolder.toFile().listFiles(new FilenameFilter() {
@@ -112,42 +141,286 @@ public class InlinerApp {
             }
         });
 
+        // Register every source up front so the file list is available
+        // while the initial render is running
+        List<SourceInstance> pending = new ArrayList<>();
         for(File file : files) {
             try {
-                SourceInstance instance = new SourceInstance(file.toPath(), dataFolder, workingFolder.getPath());
-                ProcessorContext context = inliner.process(instance.getSource(), instance.getInlined());
-                instance.update(context);
+                pending.add(add(file.toPath()));
+            } catch(Exception ex) {
+                LOG.log(Level.WARNING, "Exception reading " + file, ex);
+            }
+        }
 
-                processHandlebars(instance);
+        // Register the folder for change events
+        Monitor.getInstance().registerTree(sourceHandler, sourceFolder);
+        Monitor.getInstance().register(dataHandler, dataFolder);
 
-                getDocumentTitle(instance);
+        // In lazy mode nothing is rendered until it's requested
+        if(config.lazy) {
+            pending.forEach(instance -> {
+                instance.setDirty(true);
+                instance.setReady(true);
+            });
+            return;
+        }
 
-                sources.put(instance.getId(), instance);
+        // Render in the background, each file is announced as it completes
+        pending.forEach(instance -> scheduler.schedule(instance, true));
+    }
 
-                pathToInstance.put(file.toPath().normalize().toString(), instance.getId());
+    /**
+     * Register a new source file. It's indexed against its data file until
+     * the first render finds the rest of its dependencies.
+     */
+    private SourceInstance add(Path source) throws IOException {
+        SourceInstance instance = new SourceInstance(source, dataFolder, workingFolder);
+        sources.put(instance.getId(), instance);
+        graph.addSource(instance.getId(), instance.getSource());
+        graph.setDependencies(instance.getSource(), Collections.singleton(instance.getData()));
+        return instance;
+    }
 
-                instance.getDependencies().forEach((dependency) -> {
-                    pathToInstance.put(dependency.getPath().normalize().toString(), instance.getId());
-                    folders.add(dependency.getPath().normalize().getParent().toString());
-                });
+    /**
+     * Forget a source file that has been deleted, along with everything kept
+     * for it
+     */
+    private void remove(Path source) {
+        UUID id = graph.removeSource(source);
+        SourceInstance instance = sources.remove(id);
+
+        templates.remove(id);
+        scheduler.cancel(id);
+        updates.remove(id);
+        selections.values().removeIf(id::equals);
+        updateFolders();
+
+        if(instance != null) {
+            data.remove(instance.getData().normalize());
+            instance.getInlined().toFile().delete();
+            instance.getMerged().toFile().delete();
+        }
 
-                pathToInstance.put(instance.getData().toString(), instance.getId());
-            } catch(Exception ex) {
+        ObjectNode message = Server.getMapper().createObjectNode()
+                .put("type", "remove")
+                .put("id", id.toString());
+        try {
+            Server.send(message);
+        } catch(Exception ex) {}
+    }
 
-            }
+    /**
+     * A rebuild has completed, let the clients know
+     */
+    private void rendered(SourceInstance instance) {
+        instance.setReady(true);
+        try {
+            Server.send(interested(instance), () -> updates.encode(instance));
+        } catch(Exception ex) {}
+    }
+
+    /**
+     * Bring an instance up to date
+     * @param instance
+     * @param full re-run the inliner, otherwise only merge the data with the
+     * already inlined document. An instance that hasn't been inlined
+     * successfully yet always gets a full render.
+     * @throws Exception
+     */
+    private void render(SourceInstance instance, boolean full) throws Exception {
+        boolean inline;
+        synchronized(instance) {
+            // Clear first so a change that arrives mid-render isn't lost
+            instance.setDirty(false);
+
+            inline = full || instance.getInlinedHtml() == null;
+            if(inline)
+                inline(instance);
+            else
+                instance.clearErrors();
+
+            processHandlebars(instance);
         }
 
-        // Register the folder for change events
-        Monitor.getInstance().register(sourceHandler, sourceFolder);
-        Monitor.getInstance().register(dataHandler, dataFolder);
+        if(inline)
+            index(instance);
+    }
 
-        folders.forEach(folder -> {
-            Path f = Paths.get(folder);
-            Monitor.getInstance().register(dependencyHandler, f);
+    /**
+     * Update the dependency graph from the last render of an instance. If the
+     * dependencies have changed the watched dependency folders are brought
+     * in line.
+     */
+    private void index(SourceInstance instance) {
+        List<Path> current = new ArrayList<>();
+        current.add(instance.getData());
+        instance.getDependencies().forEach((dependency) -> {
+            current.add(dependency.getPath());
         });
+
+        if(graph.setDependencies(instance.getSource(), current))
+            updateFolders();
+    }
+
+    /**
+     * Watch the folders holding the current dependencies and stop watching
+     * any that are no longer referenced
+     */
+    private synchronized void updateFolders() {
+        Set<Path> needed = new HashSet<>();
+        graph.getDependencyNodes().forEach(path -> needed.add(path.getParent()));
+
+        // The data folder has its own handler
+        needed.remove(dataFolder);
+
+        Sets.difference(needed, folders).forEach(folder -> Monitor.getInstance().register(dependencyHandler, folder));
+        Sets.difference(folders, needed).forEach(folder -> Monitor.getInstance().unRegister(dependencyHandler, folder));
+
+        folders = ImmutableSet.copyOf(needed);
     }
 
-    private Set<UUID> changes = new HashSet<>();
+    private volatile UUID viewing;
+    private final Map<WebSocket, UUID> selections = new ConcurrentHashMap<>();  // Client to selected instance ID
+    private final Map<WebSocket, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Templates selected in a client are rebuilt first, then the ones clients
+     * subscribed to and the one last fetched for preview
+     */
+    private Priority priority(UUID id) {
+        if(selections.containsValue(id))
+            return Priority.VIEWED;
+
+        if(id.equals(viewing) || subscriptions.values().stream().anyMatch(s -> s.hasId(id)))
+            return Priority.OPEN;
+
+        return Priority.BACKGROUND;
+    }
+
+    /**
+     * @return the clients that want updates for an instance
+     */
+    private Predicate<WebSocket> interested(SourceInstance instance) {
+        return socket -> {
+            Subscription subscription = subscriptions.get(socket);
+            return subscription == null || subscription.matches(instance);
+        };
+    }
+
+    /**
+     * Track the template selected in each client, and what it subscribed to
+     */
+    class ClientHandler implements SocketHandler {
+
+        @Override
+        public void onMessage(WebSocket socket, JsonNode message) {
+            switch(message.path("type").asText()) {
+                case "select":
+                    select(socket, message);
+                    break;
+
+                case "subscribe":
+                    Subscription subscribed = subscriptions.computeIfAbsent(socket, s -> new Subscription());
+                    subscribed.subscribe(message);
+                    promoteSubscribed(message);
+                    sendSubscribed(socket, subscribed);
+                    break;
+
+                case "unsubscribe":
+                    Subscription subscription = subscriptions.get(socket);
+                    if(subscription != null)
+                        subscription.unsubscribe(message);
+                    break;
+
+                case "sync":
+                    sync(socket, message);
+                    break;
+            }
+        }
+
+        /**
+         * Updates the client skipped before it subscribed can't be patched, it
+         * gets the full state of everything it's now subscribed to
+         */
+        private void sendSubscribed(WebSocket socket, Subscription subscription) {
+            sources.values().stream()
+                    .filter(instance -> instance.isReady() && subscription.matches(instance))
+                    .forEach(instance -> Server.send(socket::equals, () -> updates.snapshot(instance)));
+        }
+
+        /**
+         * The client missed an update for an instance, send it the full state
+         */
+        private void sync(WebSocket socket, JsonNode message) {
+            try {
+                SourceInstance instance = sources.get(UUID.fromString(message.path("id").asText()));
+                if(instance != null && instance.isReady())
+                    Server.send(socket::equals, () -> updates.snapshot(instance));
+            } catch(IllegalArgumentException ex) {}
+        }
+
+        private void select(WebSocket socket, JsonNode message) {
+            try {
+                UUID id = UUID.fromString(message.path("id").asText());
+                selections.put(socket, id);
+                refresh(id);
+            } catch(IllegalArgumentException ex) {
+                selections.remove(socket);
+            }
+        }
+
+        private void promoteSubscribed(JsonNode message) {
+            message.path("ids").forEach(node -> {
+                try {
+                    refresh(UUID.fromString(node.asText()));
+                } catch(IllegalArgumentException ex) {}
+            });
+        }
+
+        /**
+         * Render an instance left out of date in lazy mode, or move its
+         * queued rebuild up
+         */
+        private void refresh(UUID id) {
+            SourceInstance instance = sources.get(id);
+            if(instance != null && instance.isDirty())
+                scheduler.schedule(instance, true);
+            else
+                scheduler.promote(id);
+        }
+
+        @Override
+        public void onClose(WebSocket socket) {
+            selections.remove(socket);
+            subscriptions.remove(socket);
+        }
+    }
+
+    private volatile Session session = new Session();
+
+    /**
+     * Instances touched by a single batch of file changes. A fresh session is
+     * swapped in for every batch so the one being rebuilt is never modified.
+     */
+    private static class Session {
+        final Set<UUID> changes = Collections.synchronizedSet(new LinkedHashSet<>());
+        final Set<UUID> dataChanges = Collections.synchronizedSet(new LinkedHashSet<>());   // Only need a re-merge
+
+        List<UUID> changes() {
+            synchronized(changes) {
+                return ImmutableList.copyOf(changes);
+            }
+        }
+
+        List<UUID> dataChanges() {
+            Set<UUID> full = ImmutableSet.copyOf(changes());
+            synchronized(dataChanges) {
+                return dataChanges.stream()
+                        .filter(id -> !full.contains(id))
+                        .collect(Collectors.toList());
+            }
+        }
+    }
 
     /**
      * Handle changes to the source files
@@ -156,45 +429,78 @@ public class InlinerApp {
 
         @Override
         public void startSession() {
-            changes.clear();
+            session = new Session();
         }
 
         @Override
         public void endSession() {
-            changes.forEach(id -> {
-                SourceInstance instance = sources.get(id);
-                if(instance != null) {
-                    try {
-                        ProcessorContext context = inliner.process(instance.getSource(), instance.getInlined());
-                        instance.update(context);
-                        processHandlebars(instance);
-                        getDocumentTitle(instance);
-                        Server.send(instance);
-                    } catch(Exception ex) {}
-                }
-            });
+            Session current = session;
+
+            // Data only changes don't need the inliner, just merge the new
+            // data with the compiled template
+            current.changes().forEach(id -> rebuild(id, true));
+            current.dataChanges().forEach(id -> rebuild(id, false));
+        }
+
+        private void rebuild(UUID id, boolean full) {
+            SourceInstance instance = sources.get(id);
+            if(instance == null)
+                return;
+
+            // In lazy mode only the template being viewed is rendered,
+            // everything else waits until it's requested
+            if(config.lazy && priority(id) == Priority.BACKGROUND) {
+                instance.setDirty(true);
+                try {
+                    Server.send(interested(instance), () -> updates.encode(instance));
+                } catch(Exception ex) {}
+            } else {
+                scheduler.schedule(instance, full);
+            }
         }
 
         @Override
         public void change(ChangeType change, Path path) {
-            String p = path.normalize().toString();
             switch(change) {
+                case CREATE:
+                    // Templates live directly in the source folder, anything
+                    // further down is a dependency that may now resolve
+                    if(isTemplate(path) && graph.getSource(path) == null) {
+                        try {
+                            SourceInstance instance = add(path);
+                            if(config.lazy)
+                                instance.setReady(true);
+                            session.changes.add(instance.getId());
+                        } catch(IOException ex) {
+                            LOG.log(Level.WARNING, "Exception reading " + path, ex);
+                        }
+                    } else {
+                        session.changes.addAll(graph.getAffected(path));
+                    }
+                    break;
+
                 case MODIFY:
-                    changes.addAll(pathToInstance.get(p));
+                    session.changes.addAll(graph.getAffected(path));
                     break;
 
                 case DELETE:
-                    Collection<UUID> source = pathToInstance.get(p);
-                    if(source.size() > 1)
-                        LOG.log(Level.WARNING, "Multiple sources mapped to path {0}", p);
-
-                    else if(!source.isEmpty())
-                        sources.remove(source.iterator().next());
+                    if(graph.getSource(path) != null) {
+                        remove(path);
+                    } else {
+                        // A dependency living alongside the sources
+                        session.changes.addAll(graph.getAffected(path));
+                    }
                     break;
             }
         }
     }
 
+    private boolean isTemplate(Path path) {
+        return path.getFileName().toString().endsWith(".html")
+                && sourceFolder.equals(path.getParent())
+                && path.toFile().isFile();
+    }
+
     /**
      * Handle changes to the dependencies
      */
@@ -202,10 +508,8 @@ public class InlinerApp {
 
         @Override
         public void change(ChangeType change, Path path) {
-            if(change == ChangeType.MODIFY) {
-                String p = path.normalize().toString();
-                changes.addAll(pathToInstance.get(p));
-            }
+            if(change == ChangeType.MODIFY)
+                session.changes.addAll(graph.getAffected(path));
         }
     }
 
@@ -216,54 +520,239 @@ public class InlinerApp {
 
         @Override
         public void change(ChangeType change, Path path) {
-            String p = path.normalize().toString();
-            changes.addAll(pathToInstance.get(p));
+            data.remove(path.normalize());
+
+            session.dataChanges.addAll(graph.getAffected(path));
         }
     }
 
+    /**
+     * Run the inliner for an instance. The processor writes its output to the
+     * working folder, it's read back once and kept with the instance.
+     */
+    private void inline(SourceInstance instance) throws Exception {
+        ProcessorContext context = inliner.get().process(instance.getSource(), instance.getInlined());
+        instance.update(context);
+        instance.setInlinedHtml(Files.toString(instance.getInlined().toFile(), Charsets.UTF_8));
+    }
+
+    /**
+     * Merge the inlined document with the json data. The merged document is
+     * kept in memory and only written to the working folder if configured.
+     * Without an inlined document the previous rendering is left in place.
+     */
     private void processHandlebars(SourceInstance instance) throws IOException {
-        try (FileWriter writer = new FileWriter(instance.getMerged().toFile())) {
-            Template template = handlebars.compile(instance.getInlined().getFileName().toString());
-            JsonNode data = Server.getMapper().readTree(instance.getData().toFile());
+        if(instance.getInlinedHtml() == null) {
+            instance.logError("Inline", "Template hasn't been inlined");
+            return;
+        }
+
+        String merged;
+        try {
+            Template template = getTemplate(instance);
             Context handlebarsContext = Context
-                    .newBuilder(data)
+                    .newBuilder(getData(instance))
                     .resolver(JsonNodeValueResolver.INSTANCE)
                     .build();
 
-            template.apply(handlebarsContext, writer);
+            merged = template.apply(handlebarsContext);
         } catch(JsonMappingException ex) {
             instance.logError("JSON", ex.getMessage());
-            Files.copy(instance.getInlined().toFile(), instance.getMerged().toFile());
+            merged = instance.getInlinedHtml();
         } catch(HandlebarsException ex) {
             instance.logError("Handlebars", ex.getError().reason);
-            Files.copy(instance.getInlined().toFile(), instance.getMerged().toFile());
+            merged = instance.getInlinedHtml();
             LOG.log(Level.WARNING, "", ex);
         } catch(FileNotFoundException ex) {
             instance.logError("JSON", "No JSON data file found");
-            Files.copy(instance.getInlined().toFile(), instance.getMerged().toFile());
+            merged = instance.getInlinedHtml();
         } catch(Exception ex) {
             instance.logError(ex.getClass().getSimpleName(), ex.getMessage());
-            Files.copy(instance.getInlined().toFile(), instance.getMerged().toFile());
+            merged = instance.getInlinedHtml();
             LOG.log(Level.WARNING, "", ex);
         }
+
+        if(merged == null)
+            return;
+
+        byte[] rendered = merged.getBytes(Charsets.UTF_8);
+        instance.setRendered(rendered);
+        getDocumentTitle(instance, merged);
+
+        if(config.writeMerged)
+            Files.write(rendered, instance.getMerged().toFile());
     }
 
-    private void getDocumentTitle(SourceInstance instance) {
-        try {
-            instance.setTitle(inliner.getTitle(instance.getMerged()));
-        } catch(Exception ex) {
-            instance.logError("TITLE", ex.getMessage());
+    /**
+     * Get the compiled template for an instance, only compiling if the inlined
+     * output has changed since the last compile
+     */
+    private Template getTemplate(SourceInstance instance) throws IOException {
+        String inlined = instance.getInlinedHtml();
+        HashCode hash = Hashing.sha256().hashString(inlined, Charsets.UTF_8);
+
+        CompiledTemplate cached = templates.get(instance.getId());
+        if(cached != null && cached.hash.equals(hash))
+            return cached.template;
+
+        Template template = handlebars.compileInline(inlined);
+        templates.put(instance.getId(), new CompiledTemplate(hash, template));
+        return template;
+    }
+
+    /**
+     * Get the parsed data for an instance. The parsed tree is kept until the
+     * DataHandler sees a change to the file.
+     */
+    private JsonNode getData(SourceInstance instance) throws IOException {
+        Path path = instance.getData().normalize();
+
+        JsonNode node = data.get(path);
+        if(node == null) {
+            node = Server.getMapper().readTree(path.toFile());
+            if(node != null)
+                data.put(path, node);
+        }
+        return node;
+    }
+
+    /**
+     * Compiled Handlebars template along with the hash of the content it was compiled from
+     */
+    private static class CompiledTemplate {
+        final HashCode hash;
+        final Template template;
+
+        CompiledTemplate(HashCode hash, Template template) {
+            this.hash = hash;
+            this.template = template;
         }
     }
 
+    private void getDocumentTitle(SourceInstance instance, String merged) {
+        instance.setTitle(getTitle(merged));
+    }
+
+    /**
+     * Get the title of a document held in memory. TemplateProcessor can only
+     * read the title from a file and the merged document isn't necessarily
+     * written, so the title element is found directly. Whitespace is collapsed
+     * and every named and numeric entity is decoded.
+     * @param html
+     * @return the text of the title element, or null if there isn't one
+     */
+    public static String getTitle(String html) {
+        Matcher matcher = TITLE.matcher(html);
+        if(!matcher.find())
+            return null;
+
+        return StringEscapeUtils.unescapeHtml4(matcher.group(1)
+                .replaceAll("\\s+", " ")
+                .trim());
+    }
+
+    /**
+     * @param loader where partials are loaded from
+     * @return a Handlebars instance with the configured helpers
+     */
+    static Handlebars handlebars(TemplateLoader loader) {
+        Handlebars rc = new Handlebars(loader);
+
+        StringHelpers.register(rc);
+        rc.registerHelper("dateFormat", new DateHelper());
+
+        EmailService.get().getHelpers().forEach((tag, helper) -> {
+            rc.registerHelper(tag, helper);
+        });
+
+        return rc;
+    }
+
+    /**
+     * Merge a document with json data
+     * @param handlebars
+     * @param html
+     * @param data
+     * @return
+     * @throws IOException
+     */
+    static String merge(Handlebars handlebars, String html, JsonNode data) throws IOException {
+        Context context = Context
+                .newBuilder(data)
+                .resolver(JsonNodeValueResolver.INSTANCE)
+                .build();
+
+        return handlebars.compileInline(html).apply(context);
+    }
+
+    /**
+     * Run the inliner on the calling thread's processor
+     * @param source
+     * @param destination
+     * @return
+     * @throws Exception
+     */
+    ProcessorContext inline(Path source, Path destination) throws Exception {
+        return inliner.get().process(source, destination);
+    }
+
+    RenderService getRenderService() {
+        return renderService;
+    }
+
+    /**
+     * @return a point in time snapshot of the instances, rebuilds running
+     * alongside don't affect it
+     */
     public Set<SourceInstance> getSources() {
-        return new HashSet<>(sources.values());
+        return ImmutableSet.copyOf(sources.values());
     }
 
     public SourceInstance getSource(UUID id) {
         return this.sources.get(id);
     }
 
+    /**
+     * Get an instance, rendering it first if it's out of date. The clients
+     * are told about the render the same way as for a scheduled rebuild.
+     * @param id
+     * @return
+     */
+    public SourceInstance getRenderedSource(UUID id) {
+        SourceInstance instance = sources.get(id);
+        if(instance != null && instance.isDirty()) {
+            try {
+                render(instance, true);
+            } catch(Exception ex) {
+                instance.logError(ex.getClass().getSimpleName(), ex.getMessage());
+                LOG.log(Level.WARNING, "Exception processing " + instance.getSource(), ex);
+            }
+            rendered(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Get every instance, rendering any that are out of date first
+     * @return the instances ordered by name
+     */
+    public List<SourceInstance> getRenderedSources() {
+        return sources.keySet().stream()
+                .map(this::getRenderedSource)
+                .filter(instance -> instance != null)
+                .sorted(Comparator.comparing(SourceInstance::getName))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Set the template currently being previewed. In lazy mode only the
+     * previewed and selected templates are rendered as soon as they change.
+     * @param id
+     */
+    public void setViewing(UUID id) {
+        viewing = id;
+    }
+
     public static InlinerApp getInstance() {
         return instance;
     }
@@ -274,6 +763,11 @@ public class InlinerApp {
     }
 
     public static void stop() {
+        if(instance != null) {
+            instance.scheduler.shutdown();
+            instance.renderService.shutdown();
+        }
+        EmailService.shutdown();
         Server.stop();
         Monitor.stop();
     }
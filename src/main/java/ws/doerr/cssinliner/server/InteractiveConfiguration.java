@@ -0,0 +1,54 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import ws.doerr.configuration.ConfigElement;
+import ws.doerr.configuration.ConfigFragment;
+import ws.doerr.configuration.ConfigHelp;
+
+/**
+ * Interactive Mode Configuration
+ * @author greg
+ */
+@ConfigFragment
+@ConfigHelp(value = {
+    "Interactive Mode Configuration\n",
+    "\t-wm, --writemerged\t\t\tWrite the merged version of each template to the working\n\t\t\t\t\t\tfolder. By default merged output is only kept in memory\n",
+    "\t-lz, --lazy\t\t\t\tOnly render templates when they're requested. Changes to templates\n\t\t\t\t\t\tthat aren't being previewed just mark them as out of date\n",
+    "\t-rt, --renderthreads\t\t\tNumber of threads used to render changed templates. Defaults\n\t\t\t\t\t\tto the number of available processors\n",
+    "\t-rb, --renderbatch\t\t\tMaximum number of documents in a single render api batch.\n\t\t\t\t\t\tDefaults to 100\n"
+}, priority = 2)
+public class InteractiveConfiguration {
+    @ConfigElement(shortName = "wm", longName = "writemerged", argCount = 0)
+    boolean writeMerged;
+
+    @ConfigElement(shortName = "lz", longName = "lazy", argCount = 0)
+    boolean lazy;
+
+    @ConfigElement(shortName = "rt", longName = "renderthreads", defaultValue = "0")
+    int renderThreads;
+
+    @ConfigElement(shortName = "rb", longName = "renderbatch", defaultValue = "100")
+    int renderBatch;
+}
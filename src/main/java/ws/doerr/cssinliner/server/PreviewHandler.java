@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.http.util.HttpStatus;
+
+/**
+ * Serves the merged previews straight from Grizzly
+ *
+ * The rendered document is already in memory so it's handed to the output
+ * buffer as is, without going through Jersey or being copied. Clients that
+ * accept gzip get a compressed copy that's made once per rendering.
+ *
+ * @author greg
+ */
+class PreviewHandler extends HttpHandler {
+    static final String PATH = "/preview";
+
+    // Grizzly treats a plain path as an exact match, the wildcard takes the ids below it
+    static final String MAPPING = PATH + "/*";
+
+    @Override
+    public void service(Request request, Response response) throws Exception {
+        Method method = request.getMethod();
+        if(method != Method.GET && method != Method.HEAD) {
+            response.setHeader(Header.Allow, "GET, HEAD");
+            response.setStatus(HttpStatus.METHOD_NOT_ALLOWED_405);
+            return;
+        }
+
+        UUID id = getId(request.getRequestURI());
+        if(id == null) {
+            response.setStatus(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+
+        InlinerApp app = InlinerApp.getInstance();
+        app.setViewing(id);
+
+        SourceInstance instance = app.getRenderedSource(id);
+        SourceInstance.Rendering rendering = instance != null ? instance.getRendering() : null;
+        if(rendering == null) {
+            response.setStatus(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+
+        // Each encoding is a different entity so gets its own tag
+        boolean gzip = acceptsGzip(request.getHeader(Header.AcceptEncoding));
+        String tag = "\"" + rendering.getHash() + (gzip ? "-gz" : "") + "\"";
+
+        response.setHeader(Header.ETag, tag);
+        response.setDateHeader(Header.LastModified, rendering.getTimestamp());
+        response.setHeader(Header.CacheControl, "no-cache");
+        response.setHeader(Header.Vary, "Accept-Encoding");
+        response.setHeader(TemplateApi.VERSION_HEADER, Long.toString(rendering.getVersion()));
+
+        if(isNotModified(request, tag, rendering.getTimestamp())) {
+            response.setStatus(HttpStatus.NOT_MODIFIED_304);
+            return;
+        }
+
+        byte[] body = rendering.getContent();
+        if(gzip) {
+            body = rendering.getGzipped();
+            response.setHeader(Header.ContentEncoding, "gzip");
+        }
+
+        response.setContentType("text/html;charset=UTF-8");
+        response.setContentLength(body.length);
+
+        if(method == Method.GET)
+            response.getOutputBuffer().writeByteBuffer(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * @return the id from a /preview/{id} request, null if there isn't a valid one
+     */
+    private static UUID getId(String uri) {
+        String prefix = PATH + "/";
+        if(uri == null || !uri.startsWith(prefix))
+            return null;
+
+        try {
+            return UUID.fromString(uri.substring(prefix.length()));
+        } catch(IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static boolean isNotModified(Request request, String tag, long modified) {
+        String match = request.getHeader(Header.IfNoneMatch);
+        if(match != null) {
+            for(String candidate : match.split(",")) {
+                String value = candidate.trim();
+                if(value.equals("*") || value.equals(tag))
+                    return true;
+            }
+            return false;
+        }
+
+        long since = request.getDateHeader(Header.IfModifiedSince);
+        return since != -1 && modified / 1000 <= since / 1000;
+    }
+
+    private static boolean acceptsGzip(String accept) {
+        if(accept == null)
+            return false;
+
+        for(String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if(!parts[0].trim().equalsIgnoreCase("gzip"))
+                continue;
+
+            for(int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                try {
+                    if(param.startsWith("q=") && Double.parseDouble(param.substring(2)) == 0)
+                        return false;
+                } catch(NumberFormatException ex) {}
+            }
+            return true;
+        }
+        return false;
+    }
+}
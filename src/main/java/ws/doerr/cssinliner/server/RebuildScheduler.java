@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds instances on a pool of workers
+ *
+ * Every instance has at most one outstanding rebuild. Scheduling an instance
+ * again while its rebuild is still queued replaces the queued one. If it's
+ * already running it's left to finish, the inliner can't be interrupted part
+ * way through a file. Its output is still written to the instance, but the
+ * listener isn't called for it and the instance is rendered again. Renders of
+ * an instance are serialized by the renderer, so the newer render always
+ * writes last. The listener is called as soon as each current rebuild
+ * completes.
+ *
+ * Queued rebuilds are taken in priority order, and in the order they were
+ * scheduled within a priority, so the template on screen is never stuck
+ * behind a few hundred others that share a stylesheet with it.
+ *
+ * @author greg
+ */
+class RebuildScheduler {
+    private static final Logger LOG = Logger.getLogger(RebuildScheduler.class.getName());
+
+    /**
+     * Rebuild priority, highest first
+     */
+    enum Priority {
+        VIEWED,         // Selected in a client
+        OPEN,           // Open somewhere, but not the current selection
+        BACKGROUND
+    }
+
+    /**
+     * Renders a single instance
+     */
+    interface Renderer {
+        void render(SourceInstance instance, boolean full) throws Exception;
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final Renderer renderer;
+    private final Consumer<SourceInstance> listener;
+    private final Function<UUID, Priority> priority;
+
+    private final Map<UUID, Job> jobs = new ConcurrentHashMap<>();          // Instance ID to latest rebuild
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * A single scheduled rebuild
+     */
+    private class Job implements Runnable, Comparable<Job> {
+        final SourceInstance instance;
+        final boolean full;
+        final Priority priority;
+        final long order = sequence.incrementAndGet();
+        final AtomicBoolean claimed = new AtomicBoolean();     // Set once it's running or replaced
+
+        Job(SourceInstance instance, boolean full, Priority priority) {
+            this.instance = instance;
+            this.full = full;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            RebuildScheduler.this.run(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int rc = priority.compareTo(other.priority);
+            return rc != 0 ? rc : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * @param threads number of worker threads, anything less than 1 uses the
+     * number of available processors
+     * @param renderer
+     * @param listener called with each instance once its rebuild completes
+     * @param priority priority of an instance at the time it's scheduled
+     */
+    RebuildScheduler(int threads, Renderer renderer, Consumer<SourceInstance> listener, Function<UUID, Priority> priority) {
+        this.renderer = renderer;
+        this.listener = listener;
+        this.priority = priority;
+
+        int count = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        workers = new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("render-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Queue an instance for rebuilding
+     * @param instance
+     * @param full re-run the inliner, otherwise only merge the data
+     */
+    void schedule(SourceInstance instance, boolean full) {
+        Job job = jobs.compute(instance.getId(), (id, previous) -> {
+            boolean merged = full;
+
+            // Take over a rebuild that hasn't started yet, keeping the
+            // inliner run if it asked for one
+            if(previous != null && previous.claimed.compareAndSet(false, true))
+                merged |= previous.full;
+
+            return new Job(instance, merged, priority.apply(id));
+        });
+
+        workers.execute(job);
+    }
+
+    /**
+     * Re-evaluate the priority of a queued rebuild, used when the selection
+     * changes
+     * @param id
+     */
+    void promote(UUID id) {
+        Job job = jobs.get(id);
+        if(job != null && !job.claimed.get() && job.priority != priority.apply(id))
+            schedule(job.instance, false);
+    }
+
+    private void run(Job job) {
+        if(!job.claimed.compareAndSet(false, true))
+            return;
+
+        SourceInstance instance = job.instance;
+        try {
+            renderer.render(instance, job.full);
+        } catch(Exception ex) {
+            instance.logError(ex.getClass().getSimpleName(), ex.getMessage());
+            LOG.log(Level.WARNING, "Exception processing " + instance.getSource(), ex);
+        }
+
+        // Superseded while running, the newer rebuild reports instead
+        if(!jobs.remove(instance.getId(), job))
+            return;
+
+        try {
+            listener.accept(instance);
+        } catch(Exception ex) {
+            LOG.log(Level.WARNING, "Exception reporting " + instance.getSource(), ex);
+        }
+    }
+
+    /**
+     * Forget any outstanding rebuild for an instance
+     * @param id
+     */
+    void cancel(UUID id) {
+        Job job = jobs.remove(id);
+        if(job != null)
+            job.claimed.set(true);
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import java.util.List;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import ws.doerr.configuration.Configuration;
+
+/**
+ * REST API
+ *
+ * Inlining as a service, documents are posted with their stylesheets and
+ * data and the inlined and merged versions returned.
+ *
+ * {"name": "welcome.html", "html": "...", "resources": {"css/main.css": "..."}, "data": {...}}
+ */
+@Path("/render")
+public class RenderApi {
+    private final InteractiveConfiguration config = Configuration.get(InteractiveConfiguration.class);
+
+    /**
+     * Render a single document
+     * @param document
+     * @return
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response render(RenderService.Document document) {
+        try {
+            RenderService.validate(document);
+        } catch(IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(ex.getMessage()).type(MediaType.TEXT_PLAIN).build();
+        }
+
+        return Response.ok(InlinerApp.getInstance().getRenderService().render(document)).build();
+    }
+
+    /**
+     * Render a batch of documents in parallel
+     * @param documents
+     * @return the results in the same order as the documents
+     * @throws InterruptedException
+     */
+    @Path("/batch")
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response renderBatch(List<RenderService.Document> documents) throws InterruptedException {
+        try {
+            if(documents == null)
+                throw new IllegalArgumentException("No documents");
+            if(documents.size() > config.renderBatch)
+                return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                        .entity("At most " + config.renderBatch + " documents per batch")
+                        .type(MediaType.TEXT_PLAIN)
+                        .build();
+            documents.forEach(RenderService::validate);
+        } catch(IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(ex.getMessage()).type(MediaType.TEXT_PLAIN).build();
+        }
+
+        return Response.ok(InlinerApp.getInstance().getRenderService().render(documents)).build();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.github.jknack.handlebars.io.FileTemplateLoader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import ws.doerr.httpserver.Server;
+import ws.doerr.projects.emailtemplates.Dependency;
+import ws.doerr.projects.emailtemplates.ProcessorContext;
+
+/**
+ * Stateless rendering for the REST api
+ *
+ * The template processor works on files, so every document is written to its
+ * own temporary folder along with its stylesheets and anything else it
+ * references. The folder is removed once the document has been rendered.
+ *
+ * Documents come from the network, so nothing outside that folder may be
+ * read. A document that pulled in any file from elsewhere is rejected, and
+ * partials are only loaded from the folder.
+ *
+ * @author greg
+ */
+class RenderService {
+    private static final Logger LOG = Logger.getLogger(RenderService.class.getName());
+
+    private final InlinerApp app;
+    private final ExecutorService workers;
+
+    /**
+     * Json Utility Class - a document to render
+     */
+    static class Document {
+        String name = "template.html";
+        String html;
+        Map<String, String> resources = new HashMap<>();    // Relative path to content, stylesheets and the like
+        JsonNode data;
+    }
+
+    /**
+     * Json Utility Class - the rendered document
+     */
+    static class Result {
+        String name;
+        String inlined;
+        String merged;
+        String title;
+        Map<String, String> meta = new HashMap<>();
+        Map<String, String> errors = new HashMap<>();
+    }
+
+    RenderService(InlinerApp app, int threads) {
+        this.app = app;
+
+        workers = Executors.newFixedThreadPool(
+                threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("api-render-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Render a batch of documents in parallel
+     * @param documents
+     * @return the results in the same order as the documents
+     * @throws InterruptedException
+     */
+    List<Result> render(List<Document> documents) throws InterruptedException {
+        List<Callable<Result>> tasks = new ArrayList<>();
+        documents.forEach(document -> tasks.add(() -> render(document)));
+
+        List<Result> results = new ArrayList<>();
+        for(Future<Result> future : workers.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch(ExecutionException ex) {
+                // render() traps everything but bad input, which is checked first
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Render a single document on the calling thread
+     * @param document
+     * @return
+     */
+    Result render(Document document) {
+        Result rc = new Result();
+        rc.name = document.name;
+
+        File folder = Files.createTempDir();
+        try {
+            Path root = folder.toPath().toRealPath();
+            Path source = resolve(root, document.name);
+            Path inlined = root.resolve(".cssinliner-out").resolve(source.getFileName());
+
+            write(source, document.html);
+            for(Map.Entry<String, String> resource : document.resources.entrySet())
+                write(resolve(root, resource.getKey()), resource.getValue());
+            inlined.getParent().toFile().mkdirs();
+
+            ProcessorContext context = app.inline(source, inlined);
+            for(Dependency dependency : context.getDependencies()) {
+                if(!isInside(root, dependency.getPath()))
+                    throw new IllegalArgumentException("Document refers to a file outside of its resources");
+            }
+
+            rc.meta.putAll(context.getMeta());
+            rc.inlined = Files.toString(inlined.toFile(), Charsets.UTF_8);
+
+            try {
+                JsonNode data = document.data != null ? document.data : Server.getMapper().createObjectNode();
+                rc.merged = InlinerApp.merge(InlinerApp.handlebars(new ConfinedTemplateLoader(root)), rc.inlined, data);
+            } catch(Exception ex) {
+                rc.errors.put("Handlebars", Objects.toString(ex.getMessage(), "Handlebars"));
+                rc.merged = rc.inlined;
+            }
+        } catch(Exception ex) {
+            rc.errors.put(ex.getClass().getSimpleName(), Objects.toString(ex.getMessage(), ex.getClass().getSimpleName()));
+            rc.inlined = null;
+            return rc;
+        } finally {
+            delete(folder);
+        }
+
+        rc.title = InlinerApp.getTitle(rc.merged);
+        if(rc.title == null)
+            rc.errors.put("TITLE", "No title found");
+
+        return rc;
+    }
+
+    /**
+     * Check a document is complete and only refers to files inside its own
+     * folder
+     * @param document
+     * @throws IllegalArgumentException
+     */
+    static void validate(Document document) {
+        if(document == null || document.html == null)
+            throw new IllegalArgumentException("Document has no html");
+        if(document.name == null || document.resources == null)
+            throw new IllegalArgumentException("Document has no name or resources");
+
+        Path root = new File("root").toPath().toAbsolutePath();
+        resolve(root, document.name);
+        document.resources.keySet().forEach(name -> resolve(root, name));
+    }
+
+    /**
+     * @return true if the path, once any links are followed, is inside the root
+     */
+    private static boolean isInside(Path root, Path path) {
+        if(path == null)
+            return true;
+
+        Path rc = path.toAbsolutePath().normalize();
+        try {
+            rc = rc.toRealPath();
+        } catch(IOException ex) {}
+
+        return rc.startsWith(root);
+    }
+
+    /**
+     * Loads partials from the document's folder and nowhere else
+     */
+    private static class ConfinedTemplateLoader extends FileTemplateLoader {
+        private final Path root;
+
+        ConfinedTemplateLoader(Path root) {
+            super(root.toFile());
+            setSuffix("");
+            this.root = root;
+        }
+
+        @Override
+        protected URL getResource(String location) throws IOException {
+            if(!isInside(root, Paths.get(location)))
+                throw new FileNotFoundException("Partial outside of the document resources " + location);
+
+            return super.getResource(location);
+        }
+    }
+
+    private static Path resolve(Path root, String name) {
+        Path rc = root.resolve(name).normalize();
+        if(!rc.startsWith(root) || rc.equals(root))
+            throw new IllegalArgumentException("Invalid file name " + name);
+        return rc;
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        path.getParent().toFile().mkdirs();
+        Files.write(content != null ? content : "", path.toFile(), Charsets.UTF_8);
+    }
+
+    private static void delete(File folder) {
+        try (Stream<Path> paths = java.nio.file.Files.walk(folder.toPath())) {
+            paths.sorted(Comparator.reverseOrder())
+                    .forEach(path -> path.toFile().delete());
+        } catch(IOException | UncheckedIOException ex) {
+            LOG.log(Level.WARNING, "Exception removing " + folder, ex);
+        }
+    }
+
+    void shutdown() {
+        workers.shutdownNow();
+    }
+}
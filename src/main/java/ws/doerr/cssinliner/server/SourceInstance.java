@@ -23,19 +23,33 @@
  */
 package ws.doerr.cssinliner.server;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 import ws.doerr.projects.emailtemplates.Dependency;
 import ws.doerr.projects.emailtemplates.ProcessorContext;
 
 /**
+ *
+ * Instances are rendered on the worker threads while the REST api and the
+ * websocket serialize them, so the collections are published as immutable
+ * snapshots rather than being cleared and refilled in place.
  *
  * @author greg
  */
@@ -49,18 +63,90 @@ public class SourceInstance {
     private final Path inlined;
     private final Path merged;
 
-    private String title;
+    private volatile String title;
 
-    private final Set<Dependency> dependencies = new HashSet<>();
+    private volatile Set<Dependency> dependencies = ImmutableSet.of();
 
     private final String viewPath;
 
-    private final Map<String, String> meta = new HashMap<>();
+    private volatile Map<String, String> meta = ImmutableMap.of();
     private final long created;
-    private long modified;
-    private long size;
+    private volatile long modified;
+    private volatile long size;
+
+    private final Map<String, String> errors = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+    private volatile boolean dirty;
+
+    @JsonIgnore
+    private volatile String inlinedHtml;
+
+    @JsonIgnore
+    private volatile Rendering rendered;
+
+    /**
+     * The merged document along with its version, the version goes up by one
+     * every time rendering the instance produces a different document
+     */
+    public static class Rendering {
+        private final byte[] content;
+        private final long version;
+        private final String hash;
+        private final long timestamp;
+        private volatile byte[] gzipped;
+
+        Rendering(byte[] content, long version) {
+            this.content = content;
+            this.version = version;
+            this.hash = Hashing.sha256().hashBytes(content).toString();
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the merged document as UTF-8 bytes
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return SHA-256 of the content
+         */
+        public String getHash() {
+            return hash;
+        }
 
-    private final Map<String, String> errors = new HashMap<>();
+        /**
+         * @return when this content was first rendered
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the content gzip compressed, compressed the first time it's
+         * asked for and kept with the rendering
+         */
+        public byte[] getGzipped() {
+            byte[] rc = gzipped;
+            if(rc == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(content);
+                } catch(IOException ex) {
+                    // Writing to memory
+                    throw new UncheckedIOException(ex);
+                }
+                rc = gzipped = out.toByteArray();
+            }
+            return rc;
+        }
+    }
 
     public SourceInstance(Path source, Path dataFolder, Path tempFolder) throws IOException {
         id = UUID.randomUUID();
@@ -73,10 +159,12 @@ public class SourceInstance {
         inlined = tempFolder.resolve(source.getFileName());
         merged = tempFolder.resolve(source.getFileName().toString().replace(".html", "merged.html"));
 
-        viewPath = "/api/files/" + id.toString();
+        viewPath = PreviewHandler.PATH + "/" + id.toString();
 
         BasicFileAttributes attr = Files.readAttributes(source, BasicFileAttributes.class);
         this.created = attr.creationTime().toMillis();
+        this.modified = attr.lastModifiedTime().toMillis();
+        this.size = attr.size();
     }
 
     public UUID getId() {
@@ -86,18 +174,52 @@ public class SourceInstance {
     public void update(ProcessorContext context) throws IOException {
         errors.clear();
 
-        dependencies.clear();
-        dependencies.addAll(context.getDependencies());
-
-        meta.clear();
-        meta.putAll(context.getMeta());
+        // Plain copies rather than Immutable collections, the processor may
+        // hand back null meta values. Null dependencies can't be watched.
+        Set<Dependency> deps = new HashSet<>(context.getDependencies());
+        deps.remove(null);
+        dependencies = Collections.unmodifiableSet(deps);
+        meta = Collections.unmodifiableMap(new HashMap<>(context.getMeta()));
 
         this.size = source.toFile().length();
         this.modified = source.toFile().lastModified();
     }
 
+    public void clearErrors() {
+        errors.clear();
+    }
+
+    /**
+     * Record an error. Exception messages are often null, the error name is
+     * used in that case.
+     * @param error
+     * @param message
+     */
     public void logError(String error, String message) {
-        errors.put(error, message);
+        String name = Objects.toString(error, "Error");
+        errors.put(name, Objects.toString(message, name));
+    }
+
+    /**
+     * @return true once the initial render has completed
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * @return true if a change hasn't been rendered yet
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+        this.dirty = dirty;
     }
 
     public String getTitle() {
@@ -108,6 +230,10 @@ public class SourceInstance {
         this.title = title;
     }
 
+    public String getName() {
+        return name;
+    }
+
     public Path getSource() {
         return source;
     }
@@ -120,6 +246,43 @@ public class SourceInstance {
         return merged;
     }
 
+    public String getInlinedHtml() {
+        return inlinedHtml;
+    }
+
+    public void setInlinedHtml(String inlinedHtml) {
+        this.inlinedHtml = inlinedHtml;
+    }
+
+    /**
+     * @return the merged document as UTF-8 bytes
+     */
+    public byte[] getRendered() {
+        Rendering current = rendered;
+        return current != null ? current.content : null;
+    }
+
+    public void setRendered(byte[] content) {
+        Rendering current = rendered;
+        if(current == null) {
+            rendered = new Rendering(content, 1);
+            return;
+        }
+
+        // Keep the version and timestamp if nothing actually changed
+        Rendering next = new Rendering(content, current.version + 1);
+        if(!next.hash.equals(current.hash))
+            rendered = next;
+    }
+
+    /**
+     * @return the last rendering, or null if the instance hasn't been
+     * rendered yet
+     */
+    public Rendering getRendering() {
+        return rendered;
+    }
+
     public Path getData() {
         return data;
     }
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Templates a websocket client wants updates for
+ *
+ * Clients subscribe to template ids and to folders, a folder covers every
+ * template below it. A client that has never subscribed gets every update,
+ * once it has it only gets what it's subscribed to. Unsubscribing from
+ * everything means no updates at all.
+ *
+ * {"type": "subscribe", "ids": [...], "folders": [...]}
+ * {"type": "unsubscribe", "ids": [...], "folders": [...]}
+ *
+ * @author greg
+ */
+class Subscription {
+    private final Set<UUID> ids = ConcurrentHashMap.newKeySet();
+    private final Set<Path> folders = ConcurrentHashMap.newKeySet();
+
+    void subscribe(JsonNode message) {
+        apply(message, ids::add, folders::add);
+    }
+
+    void unsubscribe(JsonNode message) {
+        apply(message, ids::remove, folders::remove);
+    }
+
+    private static void apply(JsonNode message, Consumer<UUID> id, Consumer<Path> folder) {
+        message.path("ids").forEach(node -> {
+            try {
+                id.accept(UUID.fromString(node.asText()));
+            } catch(IllegalArgumentException ex) {}
+        });
+
+        message.path("folders").forEach(node -> {
+            try {
+                folder.accept(normalize(Paths.get(node.asText())));
+            } catch(InvalidPathException ex) {}
+        });
+    }
+
+    /**
+     * @param id
+     * @return true if the client subscribed to this template by id
+     */
+    boolean hasId(UUID id) {
+        return ids.contains(id);
+    }
+
+    boolean matches(SourceInstance instance) {
+        if(ids.contains(instance.getId()))
+            return true;
+
+        Path source = normalize(instance.getSource());
+        return folders.stream().anyMatch(source::startsWith);
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
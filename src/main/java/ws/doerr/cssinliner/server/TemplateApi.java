@@ -23,13 +23,18 @@
  */
 package ws.doerr.cssinliner.server;
 
+import ws.doerr.cssinliner.email.BulkPublisher;
 import ws.doerr.cssinliner.email.EmailService;
+import ws.doerr.cssinliner.email.EmailServiceProvider;
 import com.google.common.base.Charsets;
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.file.Files;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ws.rs.DefaultValue;
@@ -38,9 +43,14 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import ws.doerr.cssinliner.email.EmailServiceProvider.PublishStatus;
 
 /**
  * REST API
@@ -51,6 +61,11 @@ import ws.doerr.cssinliner.email.EmailServiceProvider.PublishStatus;
 public class TemplateApi {
     private static final Logger LOG = Logger.getLogger(TemplateApi.class.getName());
 
+    private static final MediaType HTML = MediaType.TEXT_HTML_TYPE.withCharset("UTF-8");
+
+    // Version of the merged content, websocket patches are made against it
+    public static final String VERSION_HEADER = "X-Template-Version";
+
     /**
      * Get all of the files found
      * @return
@@ -69,19 +84,30 @@ public class TemplateApi {
      */
     @javax.ws.rs.Path("files/{id}")
     @GET
-    public Response getFile(@PathParam("id") UUID id) {
-        SourceInstance instance = InlinerApp.getInstance().getSource(id);
-        if(instance != null) {
-            File file = instance.getMerged().toFile();
-
-            try  {
-                return Response.ok(new FileInputStream(file), Files.probeContentType(file.toPath())).build();
-            } catch(Exception ex) {
-                LOG.log(Level.WARNING, "", ex);
-            }
-        }
+    public Response getFile(@PathParam("id") UUID id, @Context Request request) {
+        InlinerApp.getInstance().setViewing(id);
+
+        SourceInstance instance = InlinerApp.getInstance().getRenderedSource(id);
+        SourceInstance.Rendering rendering = instance != null ? instance.getRendering() : null;
+        if(rendering == null)
+            return Response.status(Response.Status.NOT_FOUND).build();
+
+        EntityTag tag = new EntityTag(rendering.getHash());
+        Date modified = new Date(rendering.getTimestamp());
+
+        // Let the browser keep the document but check back every time
+        CacheControl cache = new CacheControl();
+        cache.setNoCache(true);
+
+        Response.ResponseBuilder builder = request.evaluatePreconditions(modified, tag);
+        if(builder == null)
+            builder = Response.ok(rendering.getContent(), HTML);
 
-        return Response.status(Response.Status.NOT_FOUND).build();
+        return builder.tag(tag)
+                .lastModified(modified)
+                .cacheControl(cache)
+                .header(VERSION_HEADER, rendering.getVersion())
+                .build();
     }
 
     /**
@@ -93,24 +119,19 @@ public class TemplateApi {
     @javax.ws.rs.Path("files/{id}/sendtest")
     @PUT
     @Produces(MediaType.TEXT_PLAIN)
-    public Response sendTestEmail(@PathParam("id") UUID id,
-            @QueryParam("email") List<String> emails) {
-        SourceInstance instance = InlinerApp.getInstance().getSource(id);
-        if(instance != null && emails != null && !emails.isEmpty()) {
-            try {
-                String body = new String(Files.readAllBytes(instance.getMerged()), Charsets.UTF_8);
-
-                String rc = EmailService.get().sendEmail(emails, instance.getTitle(), body);
-
-                return Response.ok(rc).build();
-            } catch(Exception ex) {
-                return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                        .entity(ex.getMessage())
-                        .build();
-            }
+    public void sendTestEmail(@PathParam("id") UUID id,
+            @QueryParam("email") List<String> emails,
+            @Suspended AsyncResponse response) {
+        SourceInstance instance = InlinerApp.getInstance().getRenderedSource(id);
+        byte[] rendered = instance != null ? instance.getRendered() : null;
+        if(rendered == null || emails == null || emails.isEmpty()) {
+            response.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
         }
 
-        return Response.status(Response.Status.NOT_FOUND).build();
+        String body = new String(rendered, Charsets.UTF_8);
+        EmailService.get().sendEmailAsync(emails, instance.getTitle(), body)
+                .whenComplete((rc, ex) -> resume(response, rc, ex));
     }
 
     /**
@@ -122,44 +143,106 @@ public class TemplateApi {
     @javax.ws.rs.Path("files/{id}/changed")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getESPState(@PathParam("id") UUID id,
-            @DefaultValue("DEV") @QueryParam("prefix") String prefix) {
+    public void getESPState(@PathParam("id") UUID id,
+            @DefaultValue("DEV") @QueryParam("prefix") String prefix,
+            @Suspended AsyncResponse response) {
+
+        SourceInstance instance = InlinerApp.getInstance().getRenderedSource(id);
+        if(instance == null) {
+            response.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
 
-        SourceInstance instance = InlinerApp.getInstance().getSource(id);
-        if(instance == null)
-            return Response.status(Response.Status.NOT_FOUND).build();
+        String body = instance.getInlinedHtml();
+        EmailService.get().isChangedAsync(body, instance.getMeta(), prefix)
+                .whenComplete((rc, ex) -> resume(response, rc, ex));
+    }
 
-        try {
-            String body = new String(Files.readAllBytes(instance.getInlined()), Charsets.UTF_8);
-            boolean rc = EmailService.get().isChanged(body, instance.getMeta(), prefix);
-            return Response.ok(rc).build();
-        } catch(Exception ex) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(ex.getMessage())
-                    .type(MediaType.TEXT_PLAIN_TYPE)
-                    .build();
-        }
+    /**
+     * Check every file against the ESP, rendering any that are out of date
+     * first. The provider syncs its view of the ESP once rather than checking
+     * each file separately.
+     * @param prefix prefix for the template names (defaults to DEV)
+     * @return changed flag by file ID, null for a file that couldn't be
+     * rendered
+     */
+    @javax.ws.rs.Path("files/changed")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public void getESPStates(@DefaultValue("DEV") @QueryParam("prefix") String prefix,
+            @Suspended AsyncResponse response) {
+
+        List<SourceInstance> instances = InlinerApp.getInstance().getRenderedSources();
+
+        EmailServiceProvider provider = EmailService.get();
+        provider.syncAsync().thenCompose(synced -> {
+            Map<UUID, CompletableFuture<Boolean>> checks = new LinkedHashMap<>();
+            instances.forEach(instance -> checks.put(instance.getId(), instance.getInlinedHtml() != null
+                    ? provider.isChangedAsync(instance.getInlinedHtml(), instance.getMeta(), prefix)
+                    : CompletableFuture.completedFuture(null)));
+
+            return CompletableFuture.allOf(checks.values().toArray(new CompletableFuture<?>[checks.size()]))
+                    .thenApply(done -> {
+                        Map<UUID, Boolean> rc = new LinkedHashMap<>();
+                        checks.forEach((id, check) -> rc.put(id, check.join()));
+                        return rc;
+                    });
+        }).whenComplete((rc, ex) -> resume(response, rc, ex));
     }
 
     @javax.ws.rs.Path("files/{id}/changed")
     @PUT
     @Produces(MediaType.APPLICATION_JSON)
-    public Response publishTemplate(@PathParam("id") UUID id,
-            @DefaultValue("DEV") @QueryParam("prefix") String prefix) {
+    public void publishTemplate(@PathParam("id") UUID id,
+            @DefaultValue("DEV") @QueryParam("prefix") String prefix,
+            @Suspended AsyncResponse response) {
+
+        SourceInstance instance = InlinerApp.getInstance().getRenderedSource(id);
+        if(instance == null) {
+            response.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
 
-        SourceInstance instance = InlinerApp.getInstance().getSource(id);
-        if(instance == null)
-            return Response.status(Response.Status.NOT_FOUND).build();
+        String body = instance.getInlinedHtml();
+        EmailService.get().publishAsync(instance.getTitle(), body, instance.getMeta(), prefix)
+                .whenComplete((rc, ex) -> resume(response, rc, ex));
+    }
 
-        try {
-            String body = new String(Files.readAllBytes(instance.getInlined()), Charsets.UTF_8);
-            PublishStatus rc = EmailService.get().publish(instance.getTitle(), body, instance.getMeta(), prefix);
-            return Response.ok(rc).build();
-        } catch(Exception ex) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(ex.getMessage())
-                    .type(MediaType.TEXT_PLAIN_TYPE)
-                    .build();
+    /**
+     * Publish every template to the ESP, rendering any that are out of date
+     * first. Templates that can't be rendered are reported as failed.
+     * @param prefix prefix for the template names (defaults to DEV)
+     * @return the outcome for each template
+     */
+    @javax.ws.rs.Path("files/publish")
+    @PUT
+    @Produces(MediaType.APPLICATION_JSON)
+    public void publishTemplates(@DefaultValue("DEV") @QueryParam("prefix") String prefix,
+            @Suspended AsyncResponse response) {
+
+        List<BulkPublisher.Template> templates = InlinerApp.getInstance().getRenderedSources().stream()
+                .map(instance -> new BulkPublisher.Template(instance.getName(), instance.getTitle(),
+                        instance.getInlinedHtml(), instance.getMeta()))
+                .collect(Collectors.toList());
+
+        new BulkPublisher().publish(templates, prefix)
+                .whenComplete((rc, ex) -> resume(response, rc, ex));
+    }
+
+    /**
+     * Complete a suspended request with the outcome of a call to the ESP
+     */
+    private static void resume(AsyncResponse response, Object rc, Throwable ex) {
+        if(ex == null) {
+            response.resume(Response.ok(rc).build());
+            return;
         }
+
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        LOG.log(Level.WARNING, "Exception communicating with the ESP", cause);
+        response.resume(Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(cause.getMessage())
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .build());
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.cssinliner.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import ws.doerr.httpserver.Server;
+import ws.doerr.cssinliner.server.SourceInstance.Rendering;
+
+/**
+ * Builds the websocket update messages for instances
+ *
+ * The first update for an instance carries every field and is marked full,
+ * after that only the fields that changed since the previous update are sent.
+ * Every update has a sequence number and a delta names the sequence it was
+ * made against. Clients don't all see every update, so a client that isn't
+ * holding the base asks for a snapshot instead of applying the delta.
+ *
+ * When the rendered document changed the update carries a patch against the
+ * previous version: the characters from start up to length - end of the old
+ * document are replaced with text. A client holding the base version applies
+ * it, anyone else fetches the document again.
+ *
+ * {"type": "update", "id": ..., "seq": 9, "base": 8, "version": 4, "fields": {...},
+ *  "patch": {"base": 3, "start": 120, "end": 2048, "text": "..."}}
+ *
+ * {"type": "update", "id": ..., "seq": 9, "full": true, "version": 4, "fields": {...}}
+ *
+ * @author greg
+ */
+class UpdateEncoder {
+    private final Map<UUID, Sent> sent = new ConcurrentHashMap<>();     // Instance ID to the last update
+
+    /**
+     * State of an instance as of its last update
+     */
+    private static class Sent {
+        final ObjectNode fields;
+        final long seq;
+        final long version;
+        final String html;
+
+        Sent(ObjectNode fields, long seq, long version, String html) {
+            this.fields = fields;
+            this.seq = seq;
+            this.version = version;
+            this.html = html;
+        }
+    }
+
+    /**
+     * Build the next update for an instance
+     * @param instance
+     * @return
+     */
+    ObjectNode encode(SourceInstance instance) {
+        ObjectMapper mapper = Server.getMapper();
+        ObjectNode message = mapper.createObjectNode();
+
+        // Updates for the same instance can be built on different render
+        // threads, compute keeps them in order
+        sent.compute(instance.getId(), (id, previous) -> {
+            ObjectNode fields = mapper.valueToTree(instance);
+
+            Rendering rendering = instance.getRendering();
+            long version = rendering != null ? rendering.getVersion() : 0;
+            String html = rendering != null ? new String(rendering.getContent(), Charsets.UTF_8) : null;
+
+            long seq = previous != null ? previous.seq + 1 : 1;
+
+            message.put("type", "update");
+            message.put("id", id.toString());
+            message.put("seq", seq);
+            message.put("version", version);
+
+            if(previous == null) {
+                message.put("full", true);
+                message.set("fields", fields);
+            } else {
+                message.put("base", previous.seq);
+                message.set("fields", changed(mapper, previous.fields, fields));
+            }
+
+            if(previous != null && previous.html != null && html != null && previous.version != version) {
+                ObjectNode patch = patch(mapper, previous.html, html);
+                if(patch != null) {
+                    patch.put("base", previous.version);
+                    message.set("patch", patch);
+                }
+            }
+
+            return new Sent(fields, seq, version, html);
+        });
+
+        return message;
+    }
+
+    /**
+     * Build a full update with the state sent in the last update, for a
+     * client that is new to an instance or missed an update
+     * @param instance
+     * @return
+     */
+    ObjectNode snapshot(SourceInstance instance) {
+        Sent current = sent.get(instance.getId());
+        if(current == null)
+            return encode(instance);
+
+        ObjectNode message = Server.getMapper().createObjectNode();
+        message.put("type", "update");
+        message.put("id", instance.getId().toString());
+        message.put("seq", current.seq);
+        message.put("full", true);
+        message.put("version", current.version);
+        message.set("fields", current.fields);
+        return message;
+    }
+
+    /**
+     * Forget an instance that has been removed
+     * @param id
+     */
+    void remove(UUID id) {
+        sent.remove(id);
+    }
+
+    private static ObjectNode changed(ObjectMapper mapper, ObjectNode previous, ObjectNode current) {
+        ObjectNode rc = mapper.createObjectNode();
+
+        Iterator<Map.Entry<String, JsonNode>> it = current.fields();
+        while(it.hasNext()) {
+            Map.Entry<String, JsonNode> field = it.next();
+            if(!field.getValue().equals(previous.get(field.getKey())))
+                rc.set(field.getKey(), field.getValue());
+        }
+
+        Iterator<String> names = previous.fieldNames();
+        while(names.hasNext()) {
+            String name = names.next();
+            if(!current.has(name))
+                rc.putNull(name);
+        }
+
+        return rc;
+    }
+
+    /**
+     * Replace the middle of the old document, keeping the common prefix and
+     * suffix. Returns null if the patch wouldn't be much smaller than the
+     * document itself.
+     */
+    private static ObjectNode patch(ObjectMapper mapper, String previous, String current) {
+        int max = Math.min(previous.length(), current.length());
+
+        int start = 0;
+        while(start < max && previous.charAt(start) == current.charAt(start))
+            start++;
+
+        int end = 0;
+        while(end < max - start
+                && previous.charAt(previous.length() - end - 1) == current.charAt(current.length() - end - 1))
+            end++;
+
+        // Don't split a surrogate pair
+        if(start > 0 && Character.isHighSurrogate(current.charAt(start - 1)))
+            start--;
+        if(end > 0 && Character.isLowSurrogate(current.charAt(current.length() - end)))
+            end--;
+
+        String text = current.substring(start, current.length() - end);
+        if(text.length() > current.length() / 2)
+            return null;
+
+        ObjectNode rc = mapper.createObjectNode();
+        rc.put("start", start);
+        rc.put("end", end);
+        rc.put("text", text);
+        return rc;
+    }
+}
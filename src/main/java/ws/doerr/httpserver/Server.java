@@ -25,16 +25,21 @@ package ws.doerr.httpserver;
 
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.glassfish.grizzly.http.server.CLStaticHttpHandler;
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.StaticHttpHandler;
+import org.glassfish.grizzly.websockets.WebSocket;
 import org.glassfish.grizzly.websockets.WebSocketAddOn;
 import org.glassfish.grizzly.websockets.WebSocketEngine;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
@@ -103,7 +108,7 @@ public class Server {
         // Configure the WebSocket handler
         WebSocketAddOn webSocket = new WebSocketAddOn();
         server.getListener("grizzly").registerAddOn(webSocket);
-        app = new WebSocketApp();
+        app = new WebSocketApp(cfg.socketQueue);
 
         server.start();
 
@@ -125,6 +130,25 @@ public class Server {
         }
     }
 
+    /**
+     * Serve a path with a plain Grizzly handler, outside of Jersey
+     * @param handler
+     * @param path
+     */
+    public static void registerHandler(HttpHandler handler, String path) {
+        if(INSTANCE.server != null)
+            INSTANCE.server.getServerConfiguration().addHttpHandler(handler, path);
+    }
+
+    /**
+     * Set the handler for messages coming from the websocket clients
+     * @param handler
+     */
+    public static void setSocketHandler(SocketHandler handler) {
+        if(INSTANCE.app != null)
+            INSTANCE.app.setHandler(handler);
+    }
+
     public static void stop() {
         if(INSTANCE.server != null) {
             INSTANCE.server.shutdownNow();
@@ -140,4 +164,22 @@ public class Server {
         if(INSTANCE.app != null)
             INSTANCE.app.send(INSTANCE.mapper.writeValueAsString(object));
     }
+
+    /**
+     * Send to the websocket clients that want the message, nothing is
+     * serialized if none of them do
+     * @param to
+     * @param message
+     */
+    public static final void send(Predicate<WebSocket> to, Supplier<?> message) {
+        if(INSTANCE.app != null) {
+            INSTANCE.app.send(to, () -> {
+                try {
+                    return INSTANCE.mapper.writeValueAsString(message.get());
+                } catch(JsonProcessingException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
 }
@@ -36,7 +36,8 @@ import ws.doerr.configuration.ConfigHelp;
 @ConfigHelp({
     "Interactive Server Configuration\n",
     "\t-h, --host\t\t\t\tHost name to start server on (defaults to localhost)\n",
-    "\t-p, --port\t\t\t\tPort to start server on (defaults to 8081)\n"
+    "\t-p, --port\t\t\t\tPort to start server on (defaults to 8081)\n",
+    "\t-sq, --socketqueue\t\t\tMessages held for each websocket client before it's dropped\n\t\t\t\t\t\tas too slow (defaults to 64)\n"
 })
 public class ServerConfiguration {
     @ConfigElement(shortName = "p", longName = "port", configName = "port", defaultValue = "8081")
@@ -45,6 +46,9 @@ public class ServerConfiguration {
     @ConfigElement(shortName = "hn", longName = "hostname", configName = "output", defaultValue = "localhost")
     String hostname;
 
+    @ConfigElement(shortName = "sq", longName = "socketqueue", defaultValue = "64")
+    int socketQueue;
+
     public URI getServerUri() {
         StringBuilder sb = new StringBuilder("http://");
         sb.append(hostname);
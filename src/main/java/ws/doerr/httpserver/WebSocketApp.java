@@ -23,38 +23,166 @@
  */
 package ws.doerr.httpserver;
 
-import org.glassfish.grizzly.http.HttpRequestPacket;
-import org.glassfish.grizzly.websockets.DefaultWebSocket;
-import org.glassfish.grizzly.websockets.ProtocolHandler;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.websockets.DataFrame;
 import org.glassfish.grizzly.websockets.WebSocket;
 import org.glassfish.grizzly.websockets.WebSocketApplication;
-import org.glassfish.grizzly.websockets.WebSocketListener;
 
 /**
+ * Websocket broadcast hub
+ *
+ * Every connected client gets its own bounded outbound queue. Messages are
+ * written one at a time as the previous write completes so a broadcast never
+ * waits on the network. A client that can't keep up fills its queue and is
+ * disconnected, the browser reconnects and reloads the file list.
  *
  * @author greg
  */
 class WebSocketApp extends WebSocketApplication {
-    private WebSocket ws;
+    private static final Logger LOG = Logger.getLogger(WebSocketApp.class.getName());
 
-    @Override
-    public WebSocket createSocket(ProtocolHandler handler,
-            HttpRequestPacket request,
-            WebSocketListener... listeners) {
+    private final int queueSize;
+    private final Map<WebSocket, Client> clients = new ConcurrentHashMap<>();
+    private volatile SocketHandler handler;
+
+    WebSocketApp(int queueSize) {
+        this.queueSize = Math.max(queueSize, 1);
+    }
+
+    /**
+     * A connected client and the messages waiting to be written to it
+     */
+    private class Client {
+        final WebSocket socket;
+        final Queue<String> outbound = new ArrayBlockingQueue<>(queueSize);
+        final AtomicBoolean writing = new AtomicBoolean();
+
+        Client(WebSocket socket) {
+            this.socket = socket;
+        }
+
+        void offer(String message) {
+            if(!outbound.offer(message)) {
+                LOG.log(Level.WARNING, "Dropping slow websocket client, {0} messages waiting", queueSize);
+                drop(this);
+                return;
+            }
+
+            write();
+        }
+
+        /**
+         * Start writing the next message unless a write is already in progress
+         */
+        void write() {
+            if(!writing.compareAndSet(false, true))
+                return;
+
+            String message = outbound.poll();
+            if(message == null) {
+                writing.set(false);
+
+                // Something may have been queued after the poll
+                if(!outbound.isEmpty())
+                    write();
+                return;
+            }
+
+            try {
+                socket.send(message).addCompletionHandler(new EmptyCompletionHandler<DataFrame>() {
+                    @Override
+                    public void completed(DataFrame result) {
+                        writing.set(false);
+                        write();
+                    }
+
+                    @Override
+                    public void failed(Throwable throwable) {
+                        drop(Client.this);
+                    }
+                });
+            } catch(Exception ex) {
+                drop(this);
+            }
+        }
+    }
 
-        ws = new DefaultWebSocket(handler, request, listeners);
-        return ws;
+    @Override
+    public void onConnect(WebSocket socket) {
+        super.onConnect(socket);
+        clients.put(socket, new Client(socket));
     }
 
     @Override
     public void onMessage(WebSocket socket, String data) {
+        // Clients also send plain text keep alives, only json is passed on
+        if(handler == null || !data.startsWith("{"))
+            return;
+
+        try {
+            JsonNode message = Server.getMapper().readTree(data);
+            handler.onMessage(socket, message);
+        } catch(IOException ex) {
+            LOG.log(Level.FINE, "Ignoring malformed message " + data, ex);
+        }
     }
 
     @Override
-    public void onConnect(WebSocket socket) {
+    public void onClose(WebSocket socket, DataFrame frame) {
+        super.onClose(socket, frame);
+        clients.remove(socket);
+
+        if(handler != null)
+            handler.onClose(socket);
     }
 
+    private void drop(Client client) {
+        if(clients.remove(client.socket, client)) {
+            client.outbound.clear();
+            try {
+                client.socket.close(WebSocket.ABNORMAL_CLOSE, "Client too slow");
+            } catch(Exception ex) {}
+        }
+    }
+
+    public void setHandler(SocketHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queue a message for every connected client
+     * @param message
+     */
     public void send(String message) {
-        ws.send(message);
+        clients.values().forEach(client -> client.offer(message));
+    }
+
+    /**
+     * Queue a message for the clients that want it. The message is only built
+     * if at least one client does.
+     * @param to
+     * @param message
+     */
+    public void send(Predicate<WebSocket> to, Supplier<String> message) {
+        String text = null;
+        for(Client client : clients.values()) {
+            if(!to.test(client.socket))
+                continue;
+
+            if(text == null)
+                text = message.get();
+            client.offer(text);
+        }
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.monitor;
+
+import java.nio.file.Path;
+import ws.doerr.monitor.MonitorHandler.ChangeType;
+
+/**
+ * A single change reported by a Watcher
+ * @author greg
+ */
+public class FileEvent {
+    private final Path folder;
+    private final Path path;
+    private final ChangeType type;
+
+    public FileEvent(Path folder, Path path, ChangeType type) {
+        this.folder = folder;
+        this.path = path;
+        this.type = type;
+    }
+
+    /**
+     * @return the watched folder the change was seen in
+     */
+    public Path getFolder() {
+        return folder;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public ChangeType getType() {
+        return type;
+    }
+}
@@ -26,21 +26,25 @@ package ws.doerr.monitor;
 import ws.doerr.monitor.MonitorHandler.ChangeType;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import static java.nio.file.StandardWatchEventKinds.*;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import ws.doerr.configuration.Configuration;
 
 /**
  *
@@ -54,18 +58,30 @@ public class Monitor {
 
     private Thread running = null;
 
-    private WatchService service;
+    private Watcher watcher;
 
-    // Folder to Watch Key
-    private final Map<Path, WatchKey> folderToKey = new HashMap<>();
-    private final Map<WatchKey, Path> keyToFolder = new HashMap<>();
+    private final long quietPeriod;
+    private final long maxWait;
 
-    private final Multimap<Path, MonitorHandler> folderToHandler = HashMultimap.create();
-    private final Set<MonitorHandler> handlers = new HashSet<>();
+    // Folders currently handed to the watcher
+    private final Set<Path> watched = new HashSet<>();
+
+    private final Multimap<Path, MonitorHandler> folderToHandler = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+    private final Set<MonitorHandler> handlers = ConcurrentHashMap.newKeySet();
+
+    // Folders watched as part of a tree, new sub folders are watched automatically
+    private final Multimap<Path, MonitorHandler> treeToHandler = Multimaps.synchronizedSetMultimap(HashMultimap.create());
 
     private Monitor() {
+        MonitorConfiguration config = Configuration.get(MonitorConfiguration.class);
+        if(config == null)
+            config = new MonitorConfiguration();
+
+        quietPeriod = config.quietPeriod;
+        maxWait = config.maxWait;
+
         try {
-            service = FileSystems.getDefault().newWatchService();
+            watcher = createWatcher(config);
 
             running = new Thread(new Runnable() {
                 @Override
@@ -80,52 +96,183 @@ public class Monitor {
         }
     }
 
+    private static Watcher createWatcher(MonitorConfiguration config) throws IOException {
+        switch(config.watcher) {
+            case "native":
+                return new NativeWatcher();
+
+            case "poll":
+                return new PollingWatcher(config.pollInterval, config.pollHash);
+
+            default:
+                LOG.log(Level.WARNING, "Unknown watcher {0}, using native", config.watcher);
+                return new NativeWatcher();
+        }
+    }
+
     public static void stop() {
         if(instance != null && instance.running != null) {
             instance.running.interrupt();
             instance.running = null;
+
+            try {
+                instance.watcher.close();
+            } catch(IOException ex) {}
         }
     }
 
     private void process() {
         while(true) {
             try {
-                // Wait for an event then put it back
-                WatchKey k = service.take();
+                // Wait for the first event
+                List<FileEvent> events = watcher.take();
 
-                // Now we sleep for a short time. In the case where there are
-                // multiple writes, this prevents processing the same
-                // files multiple times
-                Thread.sleep(1000);
+                // Keep collecting until nothing has changed for the quiet
+                // period, or we've been collecting for the max wait. Repeated
+                // events for the same path are coalesced into a single change.
+                Map<Path, Change> pending = new LinkedHashMap<>();
+                long deadline = System.currentTimeMillis() + maxWait;
 
-                handlers.forEach(action -> {
-                    action.startSession();
-                });
+                while(events != null) {
+                    events.forEach(event -> collect(event, pending));
 
-                keyToFolder.forEach((key, folder) -> {
-                    key.pollEvents().forEach(ev -> {
-                        if(ev.kind() == OVERFLOW)
-                            return;
+                    long wait = Math.min(quietPeriod, deadline - System.currentTimeMillis());
+                    events = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
 
-                        @SuppressWarnings("unchecked")
-                        WatchEvent<Path> event = (WatchEvent<Path>) ev;
+                if(!pending.isEmpty())
+                    dispatch(pending);
+            } catch(InterruptedException | ClosedWatchServiceException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(Exception ex) {
+                LOG.log(Level.WARNING, "Exception processing file changes", ex);
+            }
+        }
+    }
 
-                        Path path = folder.resolve(event.context());
+    /**
+     * Pending change for a single path
+     */
+    private static class Change {
+        final Path folder;
+        ChangeType type;
 
-                        ChangeType change = event.kind() == ENTRY_CREATE ? ChangeType.CREATE : event.kind() == ENTRY_DELETE ? ChangeType.DELETE : ChangeType.MODIFY;
+        Change(Path folder, ChangeType type) {
+            this.folder = folder;
+            this.type = type;
+        }
+    }
 
-                        folderToHandler.get(folder).forEach(handler -> {
-                            handler.change(change, path);
-                        });
-                    });
-                });
+    private void collect(FileEvent event, Map<Path, Change> pending) {
+        Path folder = event.getFolder();
+        Path path = event.getPath();
+        ChangeType type = event.getType();
 
-                k.reset();
-            } catch(InterruptedException | ClosedWatchServiceException ex) {
-                Thread.currentThread().interrupt();
-                return;
-            } catch(Exception ex) {}
+        if(type == ChangeType.CREATE && Files.isDirectory(path))
+            watchNewFolder(folder, path, pending);
+        else if(type == ChangeType.DELETE)
+            forgetFolder(path);
+
+        Change change = pending.get(path);
+        if(change == null) {
+            pending.put(path, new Change(folder, type));
+        } else if(change.type == ChangeType.CREATE && type == ChangeType.DELETE) {
+            // Created and removed again, a temporary file
+            pending.remove(path);
+        } else if(change.type == ChangeType.DELETE && type == ChangeType.CREATE) {
+            // Replaced, the way a lot of editors save
+            change.type = ChangeType.MODIFY;
+        } else if(change.type != ChangeType.CREATE) {
+            change.type = type;
+        }
+    }
+
+    /**
+     * A folder was created inside a watched tree, watch it along with its
+     * sub folders. Anything already in there was created before the watch
+     * was in place so report it as created. A folder registered on its own
+     * that was deleted and has come back is watched again.
+     */
+    private void watchNewFolder(Path parent, Path created, Map<Path, Change> pending) {
+        Set<MonitorHandler> tree;
+        synchronized(treeToHandler) {
+            tree = new HashSet<>(treeToHandler.get(parent));
+        }
+
+        if(tree.isEmpty()) {
+            if(folderToHandler.containsKey(created))
+                updateWatches();
+            return;
+        }
+
+        tree.forEach(handler -> addTree(handler, created));
+        updateWatches();
+
+        try (Stream<Path> files = Files.walk(created)) {
+            files.filter(file -> !file.equals(created))
+                    .forEach(file -> pending.putIfAbsent(file, new Change(file.getParent(), ChangeType.CREATE)));
+        } catch(IOException | UncheckedIOException ex) {
+            LOG.log(Level.WARNING, "Exception scanning new folder " + created, ex);
+        }
+    }
 
+    /**
+     * Drop the watches for a deleted folder, and anything below it. Folders
+     * that are part of a tree are forgotten, the tree picks them up again if
+     * they're recreated. Folders registered on their own stay registered and
+     * are watched again once they exist.
+     */
+    private void forgetFolder(Path deleted) {
+        boolean changed = false;
+        synchronized(folderToHandler) {
+            synchronized(treeToHandler) {
+                Iterator<Map.Entry<Path, MonitorHandler>> it = treeToHandler.entries().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<Path, MonitorHandler> entry = it.next();
+                    if(entry.getKey().startsWith(deleted)) {
+                        it.remove();
+                        folderToHandler.remove(entry.getKey(), entry.getValue());
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        // The watches on anything that is left are gone with the folder
+        synchronized(watched) {
+            Iterator<Path> it = watched.iterator();
+            while(it.hasNext()) {
+                Path folder = it.next();
+                if(folder.startsWith(deleted)) {
+                    watcher.unwatch(folder);
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+
+        if(changed)
+            updateWatches();
+    }
+
+    private void dispatch(Map<Path, Change> pending) {
+        handlers.forEach(action -> {
+            action.startSession();
+        });
+
+        try {
+            pending.forEach((path, change) -> {
+                Set<MonitorHandler> targets;
+                synchronized(folderToHandler) {
+                    targets = new HashSet<>(folderToHandler.get(change.folder));
+                }
+
+                targets.forEach(handler -> {
+                    handler.change(change.type, path);
+                });
+            });
+        } finally {
             handlers.forEach(action -> {
                 action.endSession();
             });
@@ -143,26 +290,69 @@ public class Monitor {
         updateWatches();
     }
 
+    /**
+     * Watch a folder and all of its sub folders, including any created later
+     * @param handler
+     * @param root
+     */
+    public void registerTree(MonitorHandler handler, Path root) {
+        handlers.add(handler);
+        addTree(handler, root);
+        updateWatches();
+    }
+
+    public void unRegisterTree(MonitorHandler handler, Path root) {
+        synchronized(folderToHandler) {
+            new HashSet<>(treeToHandler.entries()).forEach(entry -> {
+                if(entry.getKey().startsWith(root) && entry.getValue() == handler) {
+                    treeToHandler.remove(entry.getKey(), handler);
+                    folderToHandler.remove(entry.getKey(), handler);
+                }
+            });
+        }
+        updateWatches();
+    }
+
+    private void addTree(MonitorHandler handler, Path root) {
+        try (Stream<Path> folders = Files.walk(root)) {
+            folders.filter(Files::isDirectory).forEach(folder -> {
+                folderToHandler.put(folder, handler);
+                treeToHandler.put(folder, handler);
+            });
+        } catch(IOException | UncheckedIOException ex) {
+            LOG.log(Level.WARNING, "Exception scanning folder " + root, ex);
+        }
+    }
+
     private void updateWatches() {
-        // Add any missing watches
-        synchronized(folderToKey) {
-            folderToHandler.keySet().forEach(folder -> {
+        if(watcher == null)
+            return;
+
+        synchronized(watched) {
+            Set<Path> needed;
+            synchronized(folderToHandler) {
+                needed = new HashSet<>(folderToHandler.keySet());
+            }
+
+            Set<Path> current = new HashSet<>(watched);
+
+            // Add any missing watches, folders that don't exist yet are tried
+            // again next time
+            Sets.difference(needed, current).forEach(folder -> {
+                if(!Files.isDirectory(folder))
+                    return;
+
                 try {
-                    if(!folderToKey.containsKey(folder)) {
-                        WatchKey key = folder.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-                        folderToKey.put(folder, key);
-                        keyToFolder.put(key, folder);
-                    }
+                    watcher.watch(folder);
+                    watched.add(folder);
                 } catch(IOException ex) {
                     LOG.log(Level.WARNING, "Exception adding watch for " + folder.toString(), ex);
                 }
             });
 
-            Set<Path> remove = Sets.difference(folderToKey.keySet(), folderToHandler.keySet());
-            remove.forEach(folder -> {
-                WatchKey key = folderToKey.remove(folder);
-                key.cancel();
-                keyToFolder.remove(key);
+            Sets.difference(current, needed).forEach(folder -> {
+                watcher.unwatch(folder);
+                watched.remove(folder);
             });
         }
     }
@@ -0,0 +1,58 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.monitor;
+
+import ws.doerr.configuration.ConfigElement;
+import ws.doerr.configuration.ConfigFragment;
+import ws.doerr.configuration.ConfigHelp;
+
+/**
+ * File Monitor Configuration
+ * @author greg
+ */
+@ConfigFragment
+@ConfigHelp({
+    "File Monitor Configuration\n",
+    "\t-wq, --watchquiet\t\t\tMilliseconds without a file change before changes are processed\n\t\t\t\t\t\t(defaults to 50)\n",
+    "\t-ww, --watchmaxwait\t\t\tMaximum milliseconds to hold changes while files keep changing\n\t\t\t\t\t\t(defaults to 2000)\n",
+    "\t-wb, --watcher\t\t\t\tHow changes are detected: native uses the operating system file\n\t\t\t\t\t\tnotifications, poll scans the folders. Use poll for network shares\n\t\t\t\t\t\tand container volumes (defaults to native)\n",
+    "\t-wi, --watchinterval\t\t\tMilliseconds between scans for the poll watcher (defaults to 1000)\n",
+    "\t-wh, --watchhash\t\t\tHave the poll watcher also compare file hashes. Catches changes\n\t\t\t\t\t\thidden by coarse timestamps at the cost of reading every file\n"
+})
+public class MonitorConfiguration {
+    @ConfigElement(shortName = "wq", longName = "watchquiet", configName = "watchquiet", defaultValue = "50")
+    long quietPeriod = 50;
+
+    @ConfigElement(shortName = "ww", longName = "watchmaxwait", configName = "watchmaxwait", defaultValue = "2000")
+    long maxWait = 2000;
+
+    @ConfigElement(shortName = "wb", longName = "watcher", configName = "watcher", defaultValue = "native")
+    String watcher = "native";
+
+    @ConfigElement(shortName = "wi", longName = "watchinterval", configName = "watchinterval", defaultValue = "1000")
+    long pollInterval = 1000;
+
+    @ConfigElement(shortName = "wh", longName = "watchhash", configName = "watchhash", argCount = 0)
+    boolean pollHash;
+}
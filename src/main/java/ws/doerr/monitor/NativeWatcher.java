@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.monitor;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.*;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ws.doerr.monitor.MonitorHandler.ChangeType;
+
+/**
+ * Watcher backed by the JDK WatchService
+ * @author greg
+ */
+public class NativeWatcher implements Watcher {
+    private static final Logger LOG = Logger.getLogger(NativeWatcher.class.getName());
+
+    private final WatchService service;
+
+    // Folder to Watch Key
+    private final Map<Path, WatchKey> folderToKey = new HashMap<>();
+    private final Map<WatchKey, Path> keyToFolder = new HashMap<>();
+
+    public NativeWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    @Override
+    public synchronized void watch(Path folder) throws IOException {
+        if(!folderToKey.containsKey(folder)) {
+            WatchKey key = folder.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            folderToKey.put(folder, key);
+            keyToFolder.put(key, folder);
+        }
+    }
+
+    @Override
+    public synchronized void unwatch(Path folder) {
+        WatchKey key = folderToKey.remove(folder);
+        if(key != null) {
+            key.cancel();
+            keyToFolder.remove(key);
+        }
+    }
+
+    @Override
+    public List<FileEvent> take() throws InterruptedException {
+        return events(service.take());
+    }
+
+    @Override
+    public List<FileEvent> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        WatchKey key = service.poll(timeout, unit);
+        return key == null ? null : events(key);
+    }
+
+    private List<FileEvent> events(WatchKey key) {
+        Path folder;
+        synchronized(this) {
+            folder = keyToFolder.get(key);
+        }
+
+        List<FileEvent> rc = new ArrayList<>();
+        key.pollEvents().forEach(ev -> {
+            if(ev.kind() == OVERFLOW) {
+                LOG.log(Level.WARNING, "Change events lost for {0}", folder);
+                return;
+            }
+
+            if(folder == null)
+                return;
+
+            @SuppressWarnings("unchecked")
+            WatchEvent<Path> event = (WatchEvent<Path>) ev;
+
+            ChangeType type = event.kind() == ENTRY_CREATE ? ChangeType.CREATE : event.kind() == ENTRY_DELETE ? ChangeType.DELETE : ChangeType.MODIFY;
+            rc.add(new FileEvent(folder, folder.resolve(event.context()), type));
+        });
+
+        key.reset();
+        return rc;
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.monitor;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ws.doerr.monitor.MonitorHandler.ChangeType;
+
+/**
+ * Watcher that periodically scans the watched folders
+ *
+ * Each scan compares the modified time and size of every entry against the
+ * previous scan. Optionally, files that look unchanged are hashed as well to
+ * catch changes hidden by coarse timestamps. This works on file systems where
+ * the WatchService doesn't, like network shares and container volumes.
+ *
+ * @author greg
+ */
+public class PollingWatcher implements Watcher {
+    private static final Logger LOG = Logger.getLogger(PollingWatcher.class.getName());
+
+    private final boolean hash;
+
+    private final Map<Path, Map<Path, Snapshot>> folders = new ConcurrentHashMap<>();
+    private final BlockingQueue<FileEvent> events = new LinkedBlockingQueue<>();
+
+    private final ScheduledExecutorService scanner = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("watch-poll")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * State of a single folder entry
+     */
+    private static class Snapshot {
+        final boolean directory;
+        final long modified;
+        final long size;
+        final HashCode hash;
+
+        Snapshot(boolean directory, long modified, long size, HashCode hash) {
+            this.directory = directory;
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param interval milliseconds between scans
+     * @param hash also compare content hashes of files with an unchanged
+     * modified time and size. This reads every watched file on every scan.
+     */
+    public PollingWatcher(long interval, boolean hash) {
+        this.hash = hash;
+        scanner.scheduleWithFixedDelay(this::scan, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void watch(Path folder) throws IOException {
+        if(!folders.containsKey(folder))
+            folders.put(folder, snapshot(folder, null));
+    }
+
+    @Override
+    public void unwatch(Path folder) {
+        folders.remove(folder);
+    }
+
+    @Override
+    public List<FileEvent> take() throws InterruptedException {
+        List<FileEvent> rc = new ArrayList<>();
+        rc.add(events.take());
+        events.drainTo(rc);
+        return rc;
+    }
+
+    @Override
+    public List<FileEvent> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        FileEvent first = events.poll(timeout, unit);
+        if(first == null)
+            return null;
+
+        List<FileEvent> rc = new ArrayList<>();
+        rc.add(first);
+        events.drainTo(rc);
+        return rc;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scanner.shutdownNow();
+    }
+
+    private void scan() {
+        folders.forEach((folder, previous) -> {
+            try {
+                Map<Path, Snapshot> current = snapshot(folder, previous);
+
+                current.forEach((path, now) -> {
+                    Snapshot then = previous.get(path);
+                    if(then == null)
+                        events.add(new FileEvent(folder, path, ChangeType.CREATE));
+                    else if(!now.directory && (now.modified != then.modified || now.size != then.size
+                            || (now.hash != null && then.hash != null && !now.hash.equals(then.hash))))
+                        events.add(new FileEvent(folder, path, ChangeType.MODIFY));
+                });
+
+                previous.keySet().forEach(path -> {
+                    if(!current.containsKey(path))
+                        events.add(new FileEvent(folder, path, ChangeType.DELETE));
+                });
+
+                // Unless it was unwatched while we were scanning
+                folders.replace(folder, previous, current);
+            } catch(Exception ex) {
+                LOG.log(Level.WARNING, "Exception scanning " + folder, ex);
+            }
+        });
+    }
+
+    /**
+     * Read the state of every entry in a folder
+     * @param folder
+     * @param previous the last snapshot, used to skip hashing files that
+     * obviously changed
+     * @return
+     * @throws IOException
+     */
+    private Map<Path, Snapshot> snapshot(Path folder, Map<Path, Snapshot> previous) throws IOException {
+        Map<Path, Snapshot> rc = new HashMap<>();
+        if(!Files.isDirectory(folder))
+            return rc;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for(Path path : entries) {
+                try {
+                    BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+                    long modified = attr.lastModifiedTime().toMillis();
+
+                    HashCode code = null;
+                    if(hash && attr.isRegularFile()) {
+                        Snapshot then = previous != null ? previous.get(path) : null;
+                        if(previous == null || (then != null && then.modified == modified && then.size == attr.size()))
+                            code = com.google.common.io.Files.hash(path.toFile(), Hashing.murmur3_128());
+                    }
+
+                    rc.put(path, new Snapshot(attr.isDirectory(), modified, attr.size(), code));
+                } catch(IOException ex) {
+                    // Deleted between listing and reading, it'll show up next scan
+                }
+            }
+        }
+
+        return rc;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015-2016 Greg Doerr
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package ws.doerr.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File system watcher backend used by the Monitor
+ *
+ * Implementations watch individual folders (not their sub folders) and report
+ * the files created, deleted or modified in them.
+ *
+ * @author greg
+ */
+public interface Watcher extends Closeable {
+    void watch(Path folder) throws IOException;
+    void unwatch(Path folder);
+
+    /**
+     * Wait for changes
+     * @return the changes available once there is at least one
+     * @throws InterruptedException
+     */
+    List<FileEvent> take() throws InterruptedException;
+
+    /**
+     * Wait a limited time for changes
+     * @param timeout
+     * @param unit
+     * @return the changes available or null if nothing changed before the timeout
+     * @throws InterruptedException
+     */
+    List<FileEvent> poll(long timeout, TimeUnit unit) throws InterruptedException;
+}
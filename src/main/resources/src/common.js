@@ -52,12 +52,22 @@
                 return {
                     restrict: "E",
                     link: function($scope, $element, $attrs) {
-                        $attrs.$observe("src", function(src) {
-                            if(!src)
-                                clear();
-                            else
-                                load(src);
-                        });
+                        // Either the document itself, or a url to load it from
+                        if($attrs.content !== undefined) {
+                            $scope.$watch($attrs.content, function(html) {
+                                if(html === undefined)
+                                    clear();
+                                else
+                                    write(html);
+                            });
+                        } else {
+                            $attrs.$observe("src", function(src) {
+                                if(!src)
+                                    clear();
+                                else
+                                    load(src);
+                            });
+                        }
 
                         function clear() {
                             $element.html("<div style='position: absolute;margin: auto;top: 0;right: 0;bottom: 0;left: 0;width: 60px;height: 60px;'>"
@@ -86,6 +96,18 @@
 
                             $compile($($element).contents())($scope);
                         }
+
+                        function write(html) {
+                            clear();
+
+                            var iFrame = angular.element("<iframe>").appendTo($element);
+                            $element.find("div").attr("style", "display: none;");
+
+                            var doc = iFrame[0].contentWindow.document;
+                            doc.open();
+                            doc.write(html);
+                            doc.close();
+                        }
                     }
                 };
             }
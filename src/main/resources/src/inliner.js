@@ -82,8 +82,8 @@
                 }
             ]);
 
-            module.directive("bldTemplates", ["$timeout", "templates", "selectSvc",
-                function($timeout, $templates, $select) {
+            module.directive("bldTemplates", ["$timeout", "templates", "selectSvc", "api",
+                function($timeout, $templates, $select, $api) {
                     return {
                         templateUrl: "templates.html",
                         controllerAs: "tmpl",
@@ -97,8 +97,17 @@
                                 self.selected = self.files[id];
                                 $select.setPreview(self.selected);
                                 self.selected.viewed = self.selected.lastMod;
+
+                                $api.select(id);
                             };
 
+                            $scope.$on("remove", function(event, id) {
+                                if(self.selected && self.selected.id === id) {
+                                    self.selected = undefined;
+                                    $select.setPreview(undefined);
+                                }
+                            });
+
                             $scope.$on("template", function(event, id) {
                                 if(!self.selected)
                                     self.selected = self.files[id];
@@ -128,8 +137,8 @@
                 }
             ]);
 
-            module.directive("bldPreview", ["$mdToast",  "api", "selectSvc", "localStorageService",
-                function($mdToast, $api, $select, $storage) {
+            module.directive("bldPreview", ["$mdToast",  "api", "templates", "selectSvc", "localStorageService",
+                function($mdToast, $api, $templates, $select, $storage) {
                     return {
                         templateUrl: "preview.html",
                         controllerAs: "preview",
@@ -140,6 +149,9 @@
 
                             $select.setCallback(function(preview) {
                                 self.selected = preview;
+
+                                if(preview && preview.html === undefined)
+                                    $templates.fetchHtml(preview);
                             });
 
                             this.sendTestEmail = function() {
@@ -175,6 +187,7 @@
 
             module.service("templates", ["$rootScope", "api",
                 function($root, $api) {
+                    var self = this;
                     var svc = {
                         files: {}
                     };
@@ -183,36 +196,106 @@
                         return svc.files;
                     };
 
-                    $api.getFiles().then(function(files) {
-                        files.sort(function(a, b) {
-                            return a.name.localeCompare(b.name);
-                        });
-                        files.forEach(function(file) {
-                            svc.files[file.id] = file;
-                            file.created = moment(file.created);
-                            file.modified = moment(file.modified);
+                    // Fetch the merged html for a file, after that it's kept
+                    // up to date by the patches in the updates
+                    this.fetchHtml = function(file) {
+                        if(!file.$fetching) {
+                            file.$fetching = $api.getHtml(file).then(function(rsp) {
+                                file.html = rsp.html;
+                                file.htmlVersion = rsp.version;
+                                return file;
+                            }).finally(function() {
+                                delete file.$fetching;
+                            });
+                        }
+                        return file.$fetching;
+                    };
 
-                            file.lastMod = getNewest(file);
+                    function load() {
+                        $api.getFiles().then(function(files) {
+                            files.sort(function(a, b) {
+                                return a.name.localeCompare(b.name);
+                            });
+                            files.forEach(function(file) {
+                                var f = svc.files[file.id];
+                                if(!f)
+                                    f = svc.files[file.id] = file;
+                                else
+                                    angular.extend(f, file);
+
+                                f.created = moment(file.created);
+                                f.modified = moment(file.modified);
+
+                                f.lastMod = getNewest(f);
+
+                                if(f.html !== undefined)
+                                    self.fetchHtml(f);
+                            });
                         });
-                    });
+                    }
+
+                    load();
+
+                    // Updates may have been missed while disconnected
+                    $root.$on("reconnected", load);
 
                     $root.$on("file", function(event, file) {
-                        if(!svc.files[file.id]) {
-                            svc.files[file.id] = file;
-                            file.created = moment(file.created);
-                            file.modified = moment(file.modified);
+                        var f = svc.files[file.id];
+                        if(!f) {
+                            f = svc.files[file.id] = file;
                         } else {
-                            var f = svc.files[file.id];
                             angular.extend(f, file);
-                            f.created = moment(file.created);
-                            f.modified = moment(file.modified);
                         }
+                        f.created = moment(file.created);
+                        f.modified = moment(file.modified);
 
-                        f.lastMod = getNewest(file);
+                        f.lastMod = getNewest(f);
 
                         $root.$broadcast("template", file.id);
                     });
 
+                    $root.$on("update", function(event, message) {
+                        var f = svc.files[message.id];
+
+                        // Fields are a delta against the base update, if that
+                        // was missed ask for the full state instead
+                        if(!message.full && (!f || f.$seq !== message.base)) {
+                            $api.sync(message.id);
+                            return;
+                        }
+
+                        if(!f) {
+                            f = svc.files[message.id] = message.fields;
+                        } else {
+                            angular.extend(f, message.fields);
+                        }
+                        f.$seq = message.seq;
+                        f.created = moment(f.created);
+                        f.modified = moment(f.modified);
+
+                        f.lastMod = getNewest(f);
+
+                        if(f.html !== undefined && f.htmlVersion !== message.version) {
+                            var patch = message.patch;
+                            if(patch && patch.base === f.htmlVersion) {
+                                f.html = f.html.substring(0, patch.start)
+                                    + patch.text
+                                    + f.html.substring(f.html.length - patch.end);
+                                f.htmlVersion = message.version;
+                            } else {
+                                // Missed an update, start again from the full document
+                                f.html = undefined;
+                                self.fetchHtml(f);
+                            }
+                        }
+
+                        $root.$broadcast("template", message.id);
+                    });
+
+                    $root.$on("remove", function(event, id) {
+                        delete svc.files[id];
+                    });
+
                     function getNewest(file) {
                         if(file.dependencies.length === 0)
                             return file.modified;
@@ -244,20 +327,61 @@
                     var httpUrl = $location.protocol() + "://" + url;
                     var wsUrl = $location.protocol() === "http" ? "ws://" + url : "wss://" + url;
 
-                    var socket = $websocket(wsUrl + "/connect");
+                    var socket = $websocket(wsUrl + "/connect", null, { reconnectIfNotNormalClose: true });
+                    var selected;
+                    var opened = false;
+
+                    // Let the server know which template is on screen so it's
+                    // rebuilt ahead of the others
+                    socket.onOpen(function() {
+                        if(opened)
+                            $root.$broadcast("reconnected");
+                        opened = true;
+
+                        if(selected)
+                            socket.send(angular.toJson({ type: "select", id: selected }));
+                    });
 
                     socket.onMessage(function(event) {
-                        $root.$broadcast("file", angular.fromJson(event.data));
+                        var message = angular.fromJson(event.data);
+                        if(message.type === "update")
+                            $root.$broadcast("update", message);
+                        else if(message.type === "remove")
+                            $root.$broadcast("remove", message.id);
+                        else
+                            $root.$broadcast("file", message);
                     });
 
                     $interval(function() {
                         socket.send("KEEPALIVE");
                     }, 60000);
 
+                    this.sync = function(id) {
+                        socket.send(angular.toJson({ type: "sync", id: id }));
+                    };
+
+                    this.select = function(id) {
+                        selected = id;
+                        socket.send(angular.toJson({ type: "select", id: id }));
+                    };
+
                     this.getHttpUrl = function() {
                         return httpUrl;
                     };
 
+                    this.getHtml = function(file) {
+                        return $http.get(httpUrl + file.viewPath, {
+                            transformResponse: function(data) {
+                                return data;
+                            }
+                        }).then(function(rsp) {
+                            return {
+                                html: rsp.data,
+                                version: parseInt(rsp.headers("X-Template-Version"), 10)
+                            };
+                        });
+                    };
+
                     this.getFiles = function() {
                         return $http.get(httpUrl + "/api/files").then(function(rsp) {
                             return rsp.data;